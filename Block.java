@@ -2,7 +2,6 @@
  * $Id: Block.java,v 1.4 2001/10/07 23:48:55 rayo Exp $
  */
 
-import java.io.RandomAccessFile ;
 import java.io.IOException ;
 import java.io.EOFException ;
 
@@ -74,24 +73,28 @@ public class Block
   }
 
   /**
-   * Read a block from a file at the current position.
-   * @param file the random access file from which to read
-   * @exception java.io.EOFException if attempt to read past end of file
+   * Read a block from a device.
+   * @param device the block device from which to read
+   * @param blockNumber the absolute number of the block to read
+   * @exception java.io.EOFException if attempt to read past end of device
    * @exception java.io.IOException if an I/O error occurs
    */
-  public void read( RandomAccessFile file ) throws IOException , EOFException
+  public void read( BlockDevice device , int blockNumber ) 
+    throws IOException , EOFException
   {
-    file.readFully( bytes ) ;
+    device.read( bytes , (long)blockNumber * blockSize ) ;
   }
 
   /**
-   * Write a block to a file at the current position.
-   * @param file the random access file to which to write
+   * Write a block to a device.
+   * @param device the block device to which to write
+   * @param blockNumber the absolute number of the block to write
    * @exception java.io.IOException if an I/O error occurs
    */
-  public void write( RandomAccessFile file ) throws IOException
+  public void write( BlockDevice device , int blockNumber ) 
+    throws IOException
   {
-    file.write( bytes ) ;
+    device.write( bytes , (long)blockNumber * blockSize ) ;
   }
 
 }
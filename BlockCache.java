@@ -0,0 +1,426 @@
+import java.io.IOException ;
+import java.util.HashMap ;
+
+/**
+ * A bounded, write-back cache of disk blocks for a simulated file system.
+ * <p>
+ * Blocks are kept in a fixed number of buffers and located by their
+ * absolute block number.  When a buffer is needed and none is free,
+ * a victim is chosen using the CLOCK (second chance) algorithm: each
+ * buffer has a reference bit which is set when the buffer is used and
+ * cleared as the clock hand passes over it; the first buffer found
+ * with a clear reference bit is reused.  If the victim is dirty it is
+ * written to the device before being reused.
+ * <p>
+ * Writes only update the buffer and mark it dirty, so several writes
+ * to the same block are coalesced into a single write to the device
+ * when the buffer is evicted or when flush() is called.
+ * <p>
+ * A block written as metadata, such as an index node block or an 
+ * indirect block, may refer to blocks or index nodes which have only
+ * just been allocated.  Before such a block is written to the device,
+ * the cache's Dependency is written, so that the bitmaps which 
+ * record the allocation are on disk before anything which relies on
+ * it, whichever order blocks happen to be evicted in.
+ * <p>
+ * A block cache may be shared by several threads.  The cache is only
+ * locked while buffers are being looked up or assigned; a block which
+ * is not cached is read from the device after the lock is released,
+ * so that reads of different blocks proceed in parallel.  While a 
+ * buffer is being loaded, other threads which need the same block 
+ * wait for it rather than reading it a second time.
+ */
+public class BlockCache
+{
+  /**
+   * Something which must be written to the device before any block
+   * written as metadata.
+   */
+  public interface Dependency
+  {
+    /**
+     * Write whatever must be on the device before a metadata block.
+     * This is called with the lock on the cache held, so it must not
+     * use the cache.
+     * @exception java.io.IOException if an I/O error occurs
+     */
+    void write() throws IOException ;
+  }
+
+  /**
+   * The device on which the cached blocks are stored.
+   */
+  private BlockDevice device = null ;
+
+  /**
+   * What must be written before a metadata block; null if nothing.
+   */
+  private Dependency dependency = null ;
+
+  /**
+   * The size of each block in bytes.
+   */
+  private short blockSize = 0 ;
+
+  /**
+   * The number of buffers in this cache.
+   */
+  private int capacity = 0 ;
+
+  /**
+   * The absolute block number held in each buffer; -1 if the buffer
+   * is not in use.
+   */
+  private int[] blockNumbers = null ;
+
+  /**
+   * The contents of each buffer.
+   */
+  private byte[][] buffers = null ;
+
+  /**
+   * True for each buffer which has been modified since it was
+   * last written to the device.
+   */
+  private boolean[] dirty = null ;
+
+  /**
+   * True for each dirty buffer which has been written as metadata
+   * since it was last written to the device.
+   */
+  private boolean[] metadata = null ;
+
+  /**
+   * The CLOCK reference bit for each buffer.
+   */
+  private boolean[] referenced = null ;
+
+  /**
+   * True for each buffer which has been assigned to a block but
+   * whose contents are still being read from the device.
+   */
+  private boolean[] loading = null ;
+
+  /**
+   * Maps absolute block numbers to the index of the buffer
+   * which holds them.
+   */
+  private HashMap<Integer,Integer> buffersByBlock = null ;
+
+  /**
+   * The current position of the clock hand.
+   */
+  private int hand = 0 ;
+
+  /**
+   * Construct a block cache for the given device.
+   * @param newDevice the device on which the blocks are stored
+   * @param newBlockSize the size of each block in bytes
+   * @param newCapacity the number of blocks the cache can hold;
+   * must be at least one
+   */
+  public BlockCache( BlockDevice newDevice , short newBlockSize ,
+    int newCapacity )
+  {
+    this( newDevice , newBlockSize , newCapacity , null ) ;
+  }
+
+  /**
+   * Construct a block cache for the given device, which writes a
+   * dependency before any block written as metadata.
+   * @param newDevice the device on which the blocks are stored
+   * @param newBlockSize the size of each block in bytes
+   * @param newCapacity the number of blocks the cache can hold;
+   * must be at least one
+   * @param newDependency what must be written to the device before a
+   * metadata block; null if nothing
+   */
+  public BlockCache( BlockDevice newDevice , short newBlockSize ,
+    int newCapacity , Dependency newDependency )
+  {
+    super() ;
+    device = newDevice ;
+    dependency = newDependency ;
+    blockSize = newBlockSize ;
+    capacity = newCapacity ;
+    blockNumbers = new int[capacity] ;
+    buffers = new byte[capacity][] ;
+    dirty = new boolean[capacity] ;
+    metadata = new boolean[capacity] ;
+    referenced = new boolean[capacity] ;
+    loading = new boolean[capacity] ;
+    buffersByBlock = new HashMap<Integer,Integer>( capacity * 2 ) ;
+    for( int i = 0 ; i < capacity ; i ++ )
+      blockNumbers[i] = -1 ;
+  }
+
+  /**
+   * Get the number of blocks this cache can hold.
+   * @return the capacity in blocks
+   */
+  public int getCapacity()
+  {
+    return capacity ;
+  }
+
+  /**
+   * Copy the specified block into a buffer, reading it from the
+   * device if it is not already cached.
+   * @param bytes the byte buffer into which the block should be copied
+   * @param blockNumber the absolute block number
+   * @exception java.io.IOException if an I/O error occurs while
+   * reading the block or writing back an evicted block
+   */
+  public void read( byte[] bytes , int blockNumber ) throws IOException
+  {
+    int buffer ;
+    synchronized( this )
+    {
+      do
+      {
+        buffer = findBuffer( blockNumber ) ;
+        if( buffer >= 0 )
+        {
+          referenced[buffer] = true ;
+          System.arraycopy( buffers[buffer] , 0 , bytes , 0 , blockSize ) ;
+          return ;
+        }
+        buffer = allocateBuffer( blockNumber ) ;
+      }
+      while( buffer < 0 ) ;
+      loading[buffer] = true ;
+    }
+
+    load( buffer , blockNumber ) ;
+
+    synchronized( this )
+    {
+      loading[buffer] = false ;
+      notifyAll() ;
+      referenced[buffer] = true ;
+      System.arraycopy( buffers[buffer] , 0 , bytes , 0 , blockSize ) ;
+    }
+  }
+
+  /**
+   * Read the specified block into the cache if it is not already
+   * there, so that a later read() will find it.  The block is not 
+   * marked as referenced, so if it is never read it is one of the 
+   * first to be reused.
+   * @param blockNumber the absolute block number
+   * @exception java.io.IOException if an I/O error occurs while
+   * reading the block or writing back an evicted block
+   */
+  public void prefetch( int blockNumber ) throws IOException
+  {
+    int buffer ;
+    synchronized( this )
+    {
+      do
+      {
+        if( buffersByBlock.containsKey( blockNumber ) )
+          return ;
+        buffer = allocateBuffer( blockNumber ) ;
+      }
+      while( buffer < 0 ) ;
+      loading[buffer] = true ;
+    }
+
+    load( buffer , blockNumber ) ;
+
+    synchronized( this )
+    {
+      loading[buffer] = false ;
+      notifyAll() ;
+    }
+  }
+
+  /**
+   * Copy a buffer into the cached copy of the specified block and mark
+   * it dirty.  The block is not read first since it is entirely
+   * overwritten.
+   * @param bytes the byte buffer from which the block should be copied
+   * @param blockNumber the absolute block number
+   * @exception java.io.IOException if an I/O error occurs while
+   * writing back an evicted block
+   */
+  public void write( byte[] bytes , int blockNumber ) throws IOException
+  {
+    write( bytes , blockNumber , false ) ;
+  }
+
+  /**
+   * Copy a buffer into the cached copy of the specified block and mark
+   * it dirty, and if it is metadata, mark it to be written after the
+   * dependency.
+   * @param bytes the byte buffer from which the block should be copied
+   * @param blockNumber the absolute block number
+   * @param isMetadata true if the block may refer to newly allocated
+   * blocks or index nodes
+   * @exception java.io.IOException if an I/O error occurs while
+   * writing back an evicted block
+   */
+  public synchronized void write( byte[] bytes , int blockNumber , 
+    boolean isMetadata ) throws IOException
+  {
+    int buffer ;
+    do
+    {
+      buffer = findBuffer( blockNumber ) ;
+      if( buffer < 0 )
+        buffer = allocateBuffer( blockNumber ) ;
+    }
+    while( buffer < 0 ) ;
+    System.arraycopy( bytes , 0 , buffers[buffer] , 0 , blockSize ) ;
+    referenced[buffer] = true ;
+    dirty[buffer] = true ;
+    if( isMetadata )
+      metadata[buffer] = true ;
+  }
+
+  /**
+   * Write all dirty blocks to the device.
+   * @exception java.io.IOException if an I/O error occurs
+   */
+  public synchronized void flush() throws IOException
+  {
+    for( int i = 0 ; i < capacity ; i ++ )
+      if( dirty[i] )
+        writeBack( i ) ;
+  }
+
+  /**
+   * Read a block from the device into a buffer which has been 
+   * assigned to it and marked as loading.  If the read fails, the 
+   * buffer is freed; otherwise the caller must mark it loaded.  The
+   * caller must not hold the lock on this cache; nobody else will 
+   * touch the buffer while it is loading.
+   * This is a convenience method.
+   * @param buffer the index of the buffer
+   * @param blockNumber the absolute block number
+   * @exception java.io.IOException if an I/O error occurs
+   */
+  private void load( int buffer , int blockNumber ) throws IOException
+  {
+    try
+    {
+      device.read( buffers[buffer] , (long)blockNumber * blockSize ) ;
+    }
+    catch( IOException e )
+    {
+      synchronized( this )
+      {
+        buffersByBlock.remove( blockNumber ) ;
+        blockNumbers[buffer] = -1 ;
+        loading[buffer] = false ;
+        notifyAll() ;
+      }
+      throw e ;
+    }
+  }
+
+  /**
+   * Find the buffer which holds the specified block, waiting for it
+   * if it is still being loaded by another thread.  The caller must
+   * hold the lock on this cache.
+   * This is a convenience method.
+   * @param blockNumber the absolute block number
+   * @return the index of the buffer; -1 if the block is not cached
+   */
+  private int findBuffer( int blockNumber )
+  {
+    while( true )
+    {
+      Integer cached = buffersByBlock.get( blockNumber ) ;
+      if( cached == null )
+        return -1 ;
+      int buffer = cached.intValue() ;
+      if( ! loading[buffer] )
+        return buffer ;
+      waitForLoad() ;
+    }
+  }
+
+  /**
+   * Wait until some buffer has finished loading.  The caller must 
+   * hold the lock on this cache.
+   * This is a convenience method.
+   */
+  private void waitForLoad()
+  {
+    try
+    {
+      wait() ;
+    }
+    catch( InterruptedException e )
+    {
+      Thread.currentThread().interrupt() ;
+    }
+  }
+
+  /**
+   * Find a buffer for the specified block, evicting another
+   * block if necessary, and record that it now holds the block.
+   * The caller must hold the lock on this cache.
+   * This is a convenience method.
+   * @param blockNumber the absolute block number
+   * @return the index of the buffer; -1 if we had to wait for a 
+   * buffer to finish loading, in which case another thread may 
+   * have cached the block meanwhile and the caller should look again
+   * @exception java.io.IOException if an I/O error occurs while
+   * writing back an evicted block
+   */
+  private int allocateBuffer( int blockNumber ) throws IOException
+  {
+    // advance the clock hand, giving a second chance to any
+    // buffer which has been referenced since the hand last passed.
+    // Buffers which are still loading can't be taken; if every
+    // buffer is loading, wait for one to finish.
+    int steps = 0 ;
+    while( loading[hand] || 
+      ( blockNumbers[hand] != -1 && referenced[hand] ) )
+    {
+      if( ! loading[hand] )
+        referenced[hand] = false ;
+      hand = ( hand + 1 ) % capacity ;
+      if( ++ steps > 2 * capacity )
+      {
+        waitForLoad() ;
+        return -1 ;
+      }
+    }
+    int buffer = hand ;
+    hand = ( hand + 1 ) % capacity ;
+
+    if( blockNumbers[buffer] != -1 )
+    {
+      if( dirty[buffer] )
+        writeBack( buffer ) ;
+      buffersByBlock.remove( blockNumbers[buffer] ) ;
+    }
+    else if( buffers[buffer] == null )
+      buffers[buffer] = new byte[blockSize] ;
+
+    blockNumbers[buffer] = blockNumber ;
+    buffersByBlock.put( blockNumber , buffer ) ;
+    return buffer ;
+  }
+
+  /**
+   * Write a dirty buffer to the device and mark it clean, writing
+   * the dependency first if the buffer holds metadata.
+   * This is a convenience method.
+   * @param buffer the index of the buffer
+   * @exception java.io.IOException if an I/O error occurs
+   */
+  private void writeBack( int buffer ) throws IOException
+  {
+    if( metadata[buffer] && dependency != null )
+      dependency.write() ;
+    device.write( buffers[buffer] , 
+      (long)blockNumbers[buffer] * blockSize ) ;
+    dirty[buffer] = false ;
+    metadata[buffer] = false ;
+  }
+
+}
@@ -0,0 +1,53 @@
+import java.io.IOException ;
+
+/**
+ * A device on which a simulated file system is stored.  A block 
+ * device reads and writes arrays of bytes at absolute byte positions;
+ * the file system decides how those positions are divided into blocks.
+ * <p>
+ * Several implementations are provided so that different ways of 
+ * reaching the backing store may be compared:
+ * <dl>
+ * <dt>file<dd>FileBlockDevice, a RandomAccessFile with seek() and read()
+ * <dt>channel<dd>ChannelBlockDevice, positional FileChannel reads and writes
+ * <dt>mmap<dd>MappedBlockDevice, a memory-mapped FileChannel
+ * <dt>memory<dd>MemoryBlockDevice, a RAM disk held in a byte array
+ * </dl>
+ */
+public interface BlockDevice
+{
+
+  /**
+   * Fill a buffer with bytes read from the device.
+   * @param bytes the buffer to fill
+   * @param position the byte position on the device at which to 
+   * start reading
+   * @exception java.io.EOFException if the read would pass the end of
+   * the device
+   * @exception java.io.IOException if an I/O error occurs
+   */
+  public void read( byte[] bytes , long position ) throws IOException ;
+
+  /**
+   * Write all the bytes of a buffer to the device.
+   * @param bytes the buffer to write
+   * @param position the byte position on the device at which to 
+   * start writing
+   * @exception java.io.IOException if an I/O error occurs
+   */
+  public void write( byte[] bytes , long position ) throws IOException ;
+
+  /**
+   * Force any writes which have been made to the device out to
+   * the underlying storage.
+   * @exception java.io.IOException if an I/O error occurs
+   */
+  public void force() throws IOException ;
+
+  /**
+   * Close the device.
+   * @exception java.io.IOException if an I/O error occurs
+   */
+  public void close() throws IOException ;
+
+}
@@ -0,0 +1,60 @@
+import java.io.RandomAccessFile ;
+import java.io.IOException ;
+import java.io.EOFException ;
+import java.nio.ByteBuffer ;
+import java.nio.channels.FileChannel ;
+
+/**
+ * A block device stored in a file which is read and written using
+ * positional FileChannel operations (like the unix pread() and 
+ * pwrite() calls).  No file pointer is shared between operations,
+ * so several threads may read and write the device at once.
+ */
+public class ChannelBlockDevice implements BlockDevice
+{
+  private RandomAccessFile file = null ;
+  private FileChannel channel = null ;
+
+  /**
+   * Construct a block device and open its backing file.
+   * @param filename the name of the backing file
+   * @param mode the mode ("r" or "rw") to use when opening the file
+   * @exception java.io.IOException if the file cannot be opened
+   */
+  public ChannelBlockDevice( String filename , String mode ) 
+    throws IOException
+  {
+    super() ;
+    file = new RandomAccessFile( filename , mode ) ;
+    channel = file.getChannel() ;
+  }
+
+  public void read( byte[] bytes , long position ) throws IOException
+  {
+    ByteBuffer buffer = ByteBuffer.wrap( bytes ) ;
+    while( buffer.hasRemaining() )
+    {
+      int count = channel.read( buffer , position + buffer.position() ) ;
+      if( count < 0 )
+        throw new EOFException() ;
+    }
+  }
+
+  public void write( byte[] bytes , long position ) throws IOException
+  {
+    ByteBuffer buffer = ByteBuffer.wrap( bytes ) ;
+    while( buffer.hasRemaining() )
+      channel.write( buffer , position + buffer.position() ) ;
+  }
+
+  public void force() throws IOException
+  {
+    channel.force( false ) ;
+  }
+
+  public void close() throws IOException
+  {
+    file.close() ;
+  }
+
+}
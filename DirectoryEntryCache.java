@@ -0,0 +1,133 @@
+import java.util.Iterator ;
+import java.util.LinkedHashMap ;
+import java.util.Map ;
+
+/**
+ * A cache of directory lookups for a simulated file system: for a 
+ * directory index node number and a name, the index node number of
+ * the file with that name in the directory.
+ * <p>
+ * Lookups which fail are cached too, as negative entries, so that
+ * repeatedly looking for a file which does not exist does not scan
+ * the directory every time.
+ * <p>
+ * The cache holds at most a given number of entries; when it is 
+ * full, the least recently used entry is dropped.  Anything which
+ * changes a directory must call remove() for each name whose entry
+ * may have changed.
+ */
+public class DirectoryEntryCache
+{
+  /**
+   * The value cached for a name which is known not to be in a 
+   * directory.
+   */
+  public static final short NOT_FOUND = -1 ;
+
+  /**
+   * The number of entries the cache holds if no size is given.
+   */
+  public static final int DEFAULT_CAPACITY = 1024 ;
+
+  /**
+   * The maximum number of entries.
+   */
+  private int capacity = 0 ;
+
+  /**
+   * The cached index node numbers, keyed by directory index node 
+   * number and name, from least to most recently used.
+   */
+  private LinkedHashMap<String,Short> entries = null ;
+
+  /**
+   * Construct a directory entry cache.
+   * @param newCapacity the maximum number of entries; zero to 
+   * cache nothing
+   */
+  public DirectoryEntryCache( int newCapacity )
+  {
+    super() ;
+    capacity = newCapacity ;
+    entries = new LinkedHashMap<String,Short>( 16 , 0.75f , true )
+    {
+      protected boolean removeEldestEntry( Map.Entry<String,Short> eldest )
+      {
+        return size() > capacity ;
+      }
+    } ;
+  }
+
+  /**
+   * Set the maximum number of entries.  If there are more entries
+   * than this, the least recently used are dropped when the next
+   * entry is added.
+   * @param newCapacity the maximum number of entries; zero to 
+   * cache nothing
+   */
+  public synchronized void setCapacity( int newCapacity )
+  {
+    capacity = newCapacity ;
+  }
+
+  /**
+   * Look up a name in the cache.
+   * @param directory the index node number of the directory
+   * @param name the name
+   * @return the index node number for the name; NOT_FOUND if the
+   * name is known not to be in the directory; null if the cache 
+   * doesn't know
+   */
+  public synchronized Short get( short directory , String name )
+  {
+    return entries.get( key( directory , name ) ) ;
+  }
+
+  /**
+   * Record the result of looking up a name in a directory.
+   * @param directory the index node number of the directory
+   * @param name the name
+   * @param indexNodeNumber the index node number for the name; 
+   * NOT_FOUND if the name is not in the directory
+   */
+  public synchronized void put( short directory , String name , 
+    short indexNodeNumber )
+  {
+    if( capacity > 0 )
+      entries.put( key( directory , name ) , indexNodeNumber ) ;
+  }
+
+  /**
+   * Forget what is known about a name in a directory.
+   * @param directory the index node number of the directory
+   * @param name the name
+   */
+  public synchronized void remove( short directory , String name )
+  {
+    entries.remove( key( directory , name ) ) ;
+  }
+
+  /**
+   * Forget what is known about every name in a directory.
+   * @param directory the index node number of the directory
+   */
+  public synchronized void removeDirectory( short directory )
+  {
+    String prefix = directory + "/" ;
+    Iterator<String> keys = entries.keySet().iterator() ;
+    while( keys.hasNext() )
+      if( keys.next().startsWith( prefix ) )
+        keys.remove() ;
+  }
+
+  /**
+   * Build the key for a directory and name.  A name can never 
+   * contain a slash, so the key is unambiguous.
+   * This is a convenience method.
+   */
+  private static String key( short directory , String name )
+  {
+    return directory + "/" + name ;
+  }
+
+}
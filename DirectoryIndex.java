@@ -0,0 +1,658 @@
+/**
+ * A hashed index of the entries of a large directory in a simulated
+ * file system, so that a name can be found by reading one block
+ * rather than every block of the directory.
+ * <p>
+ * The entries of the directory are still stored from the beginning
+ * of the file and are still read by readdir().  In a file system 
+ * with sorted directories, though, a directory which is indexed
+ * gives up keeping its entries in order of name: each new entry is
+ * added at the end, so that adding one doesn't move every entry
+ * after it, and a name is found through the index, or by reading
+ * every entry while the index is out of date.  A directory is taken
+ * to be out of order once it has as many entries as the threshold, 
+ * if it has ever had an index, or if entries have been written to
+ * it out of order; checkOrder() then leaves the header of an index
+ * which is out of date as a marker.  The index is a copy of the 
+ * entries, grouped into buckets by a hash of the name.  It is stored in the same file,
+ * starting at the sequential block returned by getFirstBlock(), which
+ * is beyond the last block of entries, so it is not included in the
+ * size of the directory and is never seen by readdir().  The index 
+ * starts at twice the largest power of two not above the number of
+ * blocks of entries, so it sits a little past the entries, among the
+ * direct or first indirect blocks of all but the largest directories.
+ * When the entries grow into the index, it moves: it is rebuilt 
+ * further on, and its old blocks are written over by entries.
+ * Whenever the index is rebuilt or given up, the blocks past its end
+ * are freed; when the directory is truncated, every block mapped by
+ * its index node is freed, those of the index included.
+ * <p>
+ * The first block of the index is a header holding MAGIC, the number
+ * of buckets (a power of two), and the size of the directory when the
+ * index was last brought up to date.  Each following block is a
+ * bucket: its first DIRECTORY_ENTRY_SIZE bytes hold the number of
+ * entries in the bucket, and the entries follow.
+ * <p>
+ * An index is only used while the size recorded in its header
+ * matches the size of the directory.  writedir() keeps the index up
+ * to date as entries are added or written over; write() on a
+ * directory, which may change entries in any way, marks the index 
+ * out of date with a size which matches no directory, and it is 
+ * ignored until it is rebuilt.  When a bucket is full, the index is
+ * rebuilt with twice as many buckets.  Directories with fewer entries than the file
+ * system's directory index threshold are not indexed.
+ */
+public class DirectoryIndex
+{
+  /**
+   * Returned by lookup() if the name is not in the directory.
+   */
+  public static final short NOT_FOUND = -1 ;
+
+  /**
+   * Returned by lookup() if the directory has no usable index, in
+   * which case the caller must search the directory itself.
+   */
+  public static final short NOT_INDEXED = -2 ;
+
+  /**
+   * Returned by lookup() if the directory has no usable index, and
+   * its entries may not be in order of name, in which case the 
+   * caller must look at every entry of the directory.
+   */
+  public static final short UNORDERED = -3 ;
+
+  /**
+   * The number of entries a directory must have before it is
+   * indexed, if no threshold is given.
+   */
+  public static final int DEFAULT_THRESHOLD = 256 ;
+
+  /**
+   * The value which marks the header block of an index ("DIX1").
+   */
+  public static final int MAGIC = 0x44495831 ;
+
+  /**
+   * The largest number of buckets an index may have.
+   */
+  public static final int MAX_BUCKETS = 1 << 16 ;
+
+  /**
+   * Get the sequential block of a directory at which its index
+   * starts, for a given size of the directory.  This is the block 
+   * after the last block of entries, rounded up to a power of two.
+   * @param fileSystem the file system containing the directory
+   * @param size the size of the directory in bytes
+   * @return the sequential block number of the index header
+   */
+  public static int getFirstBlock( FileSystem fileSystem , int size )
+  {
+    int blockSize = fileSystem.getBlockSize() ;
+    int blocks = ( size + blockSize - 1 ) / blockSize ;
+    return Integer.highestOneBit( Math.max( blocks , 1 ) ) * 2 ;
+  }
+
+  /**
+   * Look up a name in the index of a directory.  The index is read 
+   * through the block cache, without opening the directory.
+   * @param fileSystem the file system containing the directory
+   * @param directory the index node of the directory
+   * @param name the name to look for
+   * @param bytes a buffer of one block into which index blocks may 
+   * be read
+   * @return the index node number for the name; NOT_FOUND if the
+   * name is not in the directory; NOT_INDEXED if the directory has
+   * no index; UNORDERED if it has no usable index and its entries
+   * may not be in order of name, or the index could not be read
+   * @exception java.lang.Exception if any underlying action causes
+   * an exception to be thrown
+   */
+  public static short lookup( FileSystem fileSystem , IndexNode directory ,
+    String name , byte[] bytes ) throws Exception
+  {
+    int size = directory.getSize() ;
+    int first = getFirstBlock( fileSystem , size ) ;
+    if( fileSystem.readFileBlock( directory , first , bytes ) < 0 )
+      return UNORDERED ;
+    int buckets = readHeader( fileSystem , bytes , first , size ) ;
+    if( buckets <= 0 )
+      return isOrdered( fileSystem , size , bytes ) ? 
+        NOT_INDEXED : UNORDERED ;
+
+    if( fileSystem.readFileBlock( directory , first + 1 +
+      ( hash( name ) & ( buckets - 1 ) ) , bytes ) < 0 )
+      return UNORDERED ;
+    int count = readInt( bytes , 0 ) ;
+    DirectoryEntry entry = new DirectoryEntry() ;
+    for( int i = 1 ; i <= count ; i ++ )
+    {
+      entry.read( bytes , i * DirectoryEntry.DIRECTORY_ENTRY_SIZE ) ;
+      if( entry.getName().equals( name ) )
+        return entry.getIno() ;
+    }
+    return NOT_FOUND ;
+  }
+
+  /**
+   * Tell whether the entries of a directory may be kept in order of
+   * name.  They may not once the directory has as many entries as
+   * the file system's directory index threshold, or if it has ever
+   * been indexed, and new entries must then be added at the end.
+   * @param fileSystem the file system containing the directory
+   * @param directory the index node of the directory
+   * @param bytes a buffer of one block into which the index header
+   * may be read
+   * @return true if the entries may be kept in order of name
+   * @exception java.lang.Exception if any underlying action causes
+   * an exception to be thrown
+   */
+  public static boolean isOrdered( FileSystem fileSystem , 
+    IndexNode directory , byte[] bytes ) throws Exception
+  {
+    int size = directory.getSize() ;
+    if( fileSystem.readFileBlock( directory , 
+      getFirstBlock( fileSystem , size ) , bytes ) < 0 )
+      return false ;
+    return isOrdered( fileSystem , size , bytes ) ;
+  }
+
+  /**
+   * Tell whether the entries of a directory may be kept in order of
+   * name, given the block where its index header would be.
+   * This is a convenience method.
+   */
+  private static boolean isOrdered( FileSystem fileSystem , int size ,
+    byte[] header )
+  {
+    int threshold = fileSystem.getDirectoryIndexThreshold() ;
+    if( threshold > 0 && 
+      size / DirectoryEntry.DIRECTORY_ENTRY_SIZE >= threshold )
+      return false ;
+    return readInt( header , 0 ) != MAGIC ;
+  }
+
+  /**
+   * Bring the index of a directory up to date after an entry has
+   * been added to the end of the directory.  If the directory was indexed
+   * before the entry was added, the entry is added to its bucket;
+   * otherwise, if the directory has reached the file system's
+   * directory index threshold, the index is built from the entries
+   * of the directory.  A directory which has had an index keeps a 
+   * header, even when it is no longer indexed, so that it is known
+   * to be out of order.  If anything goes wrong, the index is left
+   * out of date, and the directory is searched without it.
+   * @param directory an open file descriptor for the directory
+   * @param entry the entry which was added
+   * @return 0 if successful; -1 if the index could not be written
+   * @exception java.lang.Exception if any underlying action causes
+   * an exception to be thrown
+   */
+  public static int add( FileDescriptor directory , DirectoryEntry entry )
+    throws Exception
+  {
+    FileSystem fileSystem = directory.getFileSystem() ;
+    int threshold = fileSystem.getDirectoryIndexThreshold() ;
+    int size = directory.getSize() ;
+    int oldSize = size - DirectoryEntry.DIRECTORY_ENTRY_SIZE ;
+    int first = getFirstBlock( fileSystem , size ) ;
+    int oldFirst = getFirstBlock( fileSystem , oldSize ) ;
+    boolean small = threshold <= 0 ||
+      size / DirectoryEntry.DIRECTORY_ENTRY_SIZE < threshold ;
+    if( small && first == oldFirst )
+      return 0 ;
+
+    // read the header as it was before the entry was added
+    if( directory.readBlock( oldFirst ) < 0 )
+      return -1 ;
+    boolean indexed = readInt( directory.getBytes() , 0 ) == MAGIC ;
+    int buckets = readHeader( fileSystem , directory.getBytes() , 
+      oldFirst , oldSize ) ;
+
+    // if the entries have grown into the index, it must be rebuilt
+    // further on; until it is, an out of date header is left there,
+    // so that the directory is still known to be out of order
+    if( first != oldFirst )
+    {
+      if( indexed )
+      {
+        if( writeHeader( directory , 1 , -1 ) < 0 )
+          return -1 ;
+        if( small )
+          fileSystem.freeBlocks( directory.getIndexNode() , first + 1 ) ;
+      }
+      return small ? 0 : build( directory , 1 ) ;
+    }
+
+    // if the index was up to date before the entry was added, add
+    // the entry to its bucket, unless the bucket is full
+    if( buckets < 0 )
+      return 0 ;
+    if( buckets > 0 )
+    {
+      int status = insertEntry( directory , buckets , entry ) ;
+      if( status < 0 )
+        return -1 ;
+      if( status == 0 )
+        return writeHeader( directory , buckets , size ) ;
+      buckets *= 2 ;
+    }
+
+    return build( directory , buckets ) ;
+  }
+
+  /**
+   * Bring the index of a directory up to date after an entry has 
+   * been written over another.  The old entry is taken out of its 
+   * bucket and the new entry put in its own.  If that can't be done,
+   * the index is marked out of date, so that the directory is 
+   * searched without it until it is rebuilt.
+   * @param directory an open file descriptor for the directory
+   * @param oldEntry the entry which was written over
+   * @param newEntry the entry which replaced it
+   * @return 0 if successful; -1 if the index could not be written
+   * @exception java.lang.Exception if any underlying action causes
+   * an exception to be thrown
+   */
+  public static int replace( FileDescriptor directory , 
+    DirectoryEntry oldEntry , DirectoryEntry newEntry ) throws Exception
+  {
+    FileSystem fileSystem = directory.getFileSystem() ;
+    byte[] bytes = new byte[fileSystem.getBlockSize()] ;
+    int size = directory.getSize() ;
+    int first = getFirstBlock( fileSystem , size ) ;
+    if( fileSystem.readFileBlock( directory.getIndexNode() , first , 
+      bytes ) < 0 )
+      return -1 ;
+    int buckets = readHeader( fileSystem , bytes , first , size ) ;
+    if( buckets <= 0 )
+      return 0 ;
+
+    int status = removeEntry( directory , buckets , oldEntry ) ;
+    if( status == 0 )
+      status = insertEntry( directory , buckets , newEntry ) ;
+    if( status == 0 )
+      return 0 ;
+    if( status > 0 )
+      return build( directory , buckets * 2 ) ;
+    writeHeader( directory , buckets , -1 ) ;
+    return -1 ;
+  }
+
+  /**
+   * Mark the index of a directory out of date, because its entries 
+   * have been changed without going through writedir().  The index 
+   * is ignored until it is rebuilt, the next time an entry is added.
+   * @param directory an open file descriptor for the directory
+   * @return 0 if successful; -1 if the index could not be written
+   * @exception java.lang.Exception if any underlying action causes
+   * an exception to be thrown
+   */
+  public static int invalidate( FileDescriptor directory ) 
+    throws Exception
+  {
+    FileSystem fileSystem = directory.getFileSystem() ;
+    byte[] bytes = new byte[fileSystem.getBlockSize()] ;
+    if( fileSystem.readFileBlock( directory.getIndexNode() , 
+      getFirstBlock( fileSystem , directory.getSize() ) , bytes ) < 0 )
+      return 0 ;
+    int buckets = readInt( bytes , 4 ) ;
+    if( readInt( bytes , 0 ) != MAGIC || buckets == 0 )
+      return 0 ;
+    return writeHeader( directory , buckets , -1 ) ;
+  }
+
+  /**
+   * Make sure a directory in a file system with sorted directories is
+   * still in order of name after entries have been written to it.  
+   * If the entries written are out of order with each other or with 
+   * the entries on either side, or the directory was out of order 
+   * before they were written, it is marked as out of order with the
+   * header of an index which is out of date, if it has no header 
+   * already.  It is then searched entry by entry rather than by 
+   * binary search, and new entries are added at the end.
+   * @param directory an open file descriptor for the directory
+   * @param start the offset of the first byte written
+   * @param end the offset just past the last byte written
+   * @param ordered true if the directory was in order before the 
+   * entries were written
+   * @return 0 if successful; -1 if the directory could not be read
+   * or written
+   * @exception java.lang.Exception if any underlying action causes
+   * an exception to be thrown
+   */
+  public static int checkOrder( FileDescriptor directory , int start ,
+    int end , boolean ordered ) throws Exception
+  {
+    if( ordered )
+    {
+      int status = isInOrder( directory , start , end ) ;
+      if( status != 0 )
+        return status < 0 ? -1 : 0 ;
+    }
+
+    FileSystem fileSystem = directory.getFileSystem() ;
+    if( directory.readBlock( 
+      getFirstBlock( fileSystem , directory.getSize() ) ) < 0 )
+      return -1 ;
+    if( readInt( directory.getBytes() , 0 ) == MAGIC )
+      return 0 ;
+    return writeHeader( directory , 1 , -1 ) ;
+  }
+
+  /**
+   * Tell whether the entries of a directory from one entry before a
+   * range of bytes to one entry after it are in order of name.
+   * This is a convenience method.
+   * @param directory an open file descriptor for the directory
+   * @param start the offset of the first byte of the range
+   * @param end the offset just past the last byte of the range
+   * @return 1 if the entries are in order; 0 if they are not; -1 if
+   * the directory could not be read
+   * @exception java.lang.Exception if any underlying action causes
+   * an exception to be thrown
+   */
+  private static int isInOrder( FileDescriptor directory , int start ,
+    int end ) throws Exception
+  {
+    int blockSize = directory.getBlockSize() ;
+    int from = Math.max( start / DirectoryEntry.DIRECTORY_ENTRY_SIZE - 1 ,
+      0 ) * DirectoryEntry.DIRECTORY_ENTRY_SIZE ;
+    int to = Math.min( ( end + DirectoryEntry.DIRECTORY_ENTRY_SIZE - 1 ) /
+      DirectoryEntry.DIRECTORY_ENTRY_SIZE + 1 , 
+      directory.getSize() / DirectoryEntry.DIRECTORY_ENTRY_SIZE ) *
+      DirectoryEntry.DIRECTORY_ENTRY_SIZE ;
+    DirectoryEntry entry = new DirectoryEntry() ;
+    String previous = null ;
+    for( int offset = from ; offset < to ; 
+      offset += DirectoryEntry.DIRECTORY_ENTRY_SIZE )
+    {
+      if( offset == from || offset % blockSize == 0 )
+        if( directory.readBlock( offset / blockSize ) < 0 )
+          return -1 ;
+      entry.read( directory.getBytes() , offset % blockSize ) ;
+      String name = entry.getName() ;
+      if( previous != null && previous.compareTo( name ) > 0 )
+        return 0 ;
+      previous = name ;
+    }
+    return 1 ;
+  }
+
+  /**
+   * Add an entry to its bucket in the index of a directory.
+   * This is a convenience method.
+   * @param directory an open file descriptor for the directory
+   * @param buckets the number of buckets in the index
+   * @param entry the entry
+   * @return 0 if successful; 1 if the bucket is full; -1 if the 
+   * bucket could not be read or written
+   * @exception java.lang.Exception if any underlying action causes
+   * an exception to be thrown
+   */
+  private static int insertEntry( FileDescriptor directory , int buckets , 
+    DirectoryEntry entry ) throws Exception
+  {
+    FileSystem fileSystem = directory.getFileSystem() ;
+    int bucket = getFirstBlock( fileSystem , directory.getSize() ) + 1 + 
+      ( hash( entry.getName() ) & ( buckets - 1 ) ) ;
+    if( directory.readBlock( bucket ) < 0 )
+      return -1 ;
+    byte[] bytes = directory.getBytes() ;
+    int count = readInt( bytes , 0 ) ;
+    if( count >= getBucketCapacity( fileSystem ) )
+      return 1 ;
+    count ++ ;
+    entry.write( bytes , count * DirectoryEntry.DIRECTORY_ENTRY_SIZE ) ;
+    writeInt( bytes , 0 , count ) ;
+    return directory.writeBlock( bucket ) < 0 ? -1 : 0 ;
+  }
+
+  /**
+   * Take an entry out of its bucket in the index of a directory.  The
+   * last entry of the bucket is moved into its place.
+   * This is a convenience method.
+   * @param directory an open file descriptor for the directory
+   * @param buckets the number of buckets in the index
+   * @param entry the entry
+   * @return 0 if successful; -1 if the entry is not in its bucket, or
+   * the bucket could not be read or written
+   * @exception java.lang.Exception if any underlying action causes
+   * an exception to be thrown
+   */
+  private static int removeEntry( FileDescriptor directory , int buckets ,
+    DirectoryEntry entry ) throws Exception
+  {
+    FileSystem fileSystem = directory.getFileSystem() ;
+    int bucket = getFirstBlock( fileSystem , directory.getSize() ) + 1 + 
+      ( hash( entry.getName() ) & ( buckets - 1 ) ) ;
+    if( directory.readBlock( bucket ) < 0 )
+      return -1 ;
+    byte[] bytes = directory.getBytes() ;
+    int count = readInt( bytes , 0 ) ;
+    DirectoryEntry candidate = new DirectoryEntry() ;
+    for( int i = 1 ; i <= count ; i ++ )
+    {
+      candidate.read( bytes , i * DirectoryEntry.DIRECTORY_ENTRY_SIZE ) ;
+      if( candidate.getIno() != entry.getIno() ||
+        ! candidate.getName().equals( entry.getName() ) )
+        continue ;
+      System.arraycopy( bytes , count * DirectoryEntry.DIRECTORY_ENTRY_SIZE ,
+        bytes , i * DirectoryEntry.DIRECTORY_ENTRY_SIZE , 
+        DirectoryEntry.DIRECTORY_ENTRY_SIZE ) ;
+      writeInt( bytes , 0 , count - 1 ) ;
+      return directory.writeBlock( bucket ) < 0 ? -1 : 0 ;
+    }
+    return -1 ;
+  }
+
+  /**
+   * Build the index of a directory from its entries.  The index is
+   * given at least the specified number of buckets, and more if
+   * they would be more than half full or any would overflow.  If
+   * that would take more than MAX_BUCKETS, or more blocks than the
+   * file may have, the directory is marked as not indexable, and
+   * is searched without an index from then on.
+   * This is a convenience method.
+   * @param directory an open file descriptor for the directory
+   * @param buckets the least number of buckets to use
+   * @return 0 if successful; -1 if the index could not be written
+   * @exception java.lang.Exception if any underlying action causes
+   * an exception to be thrown
+   */
+  private static int build( FileDescriptor directory , int buckets )
+    throws Exception
+  {
+    FileSystem fileSystem = directory.getFileSystem() ;
+    int blockSize = fileSystem.getBlockSize() ;
+    int size = directory.getSize() ;
+    int capacity = getBucketCapacity( fileSystem ) ;
+    int first = getFirstBlock( fileSystem , size ) ;
+    int maxBuckets = Math.min( MAX_BUCKETS ,
+      fileSystem.getMaxFileBlocks() - first - 1 ) ;
+
+    // read every entry of the directory
+    int count = size / DirectoryEntry.DIRECTORY_ENTRY_SIZE ;
+    DirectoryEntry[] entries = new DirectoryEntry[count] ;
+    int[] hashes = new int[count] ;
+    for( int i = 0 ; i < count ; i ++ )
+    {
+      int offset = i * DirectoryEntry.DIRECTORY_ENTRY_SIZE ;
+      if( offset % blockSize == 0 &&
+        directory.readBlock( offset / blockSize ) < 0 )
+        return -1 ;
+      entries[i] = new DirectoryEntry() ;
+      entries[i].read( directory.getBytes() , offset % blockSize ) ;
+      hashes[i] = hash( entries[i].getName() ) ;
+    }
+
+    // choose enough buckets that they start at most half full, and
+    // that none overflows
+    if( buckets < 1 )
+      buckets = 1 ;
+    while( buckets < maxBuckets && buckets * capacity < 2 * count )
+      buckets *= 2 ;
+    int[] counts = null ;
+    while( true )
+    {
+      if( capacity < 1 || buckets > maxBuckets )
+        return finish( directory , 0 , size ) ;
+      counts = new int[buckets] ;
+      if( ! overflows( hashes , buckets , capacity , counts ) )
+        break ;
+      buckets *= 2 ;
+    }
+
+    // sort the entries by bucket
+    int[] starts = new int[buckets + 1] ;
+    for( int bucket = 0 ; bucket < buckets ; bucket ++ )
+      starts[bucket + 1] = starts[bucket] + counts[bucket] ;
+    int[] next = new int[buckets] ;
+    System.arraycopy( starts , 0 , next , 0 , buckets ) ;
+    DirectoryEntry[] sorted = new DirectoryEntry[count] ;
+    for( int i = 0 ; i < count ; i ++ )
+      sorted[next[hashes[i] & ( buckets - 1 )] ++] = entries[i] ;
+
+    // write the buckets, then the header which makes them valid
+    byte[] bytes = directory.getBytes() ;
+    for( int bucket = 0 ; bucket < buckets ; bucket ++ )
+    {
+      for( int i = 0 ; i < blockSize ; i ++ )
+        bytes[i] = 0 ;
+      writeInt( bytes , 0 , counts[bucket] ) ;
+      for( int i = 0 ; i < counts[bucket] ; i ++ )
+        sorted[starts[bucket] + i].write( bytes , 
+          ( i + 1 ) * DirectoryEntry.DIRECTORY_ENTRY_SIZE ) ;
+      if( directory.writeBlock( first + 1 + bucket ) < 0 )
+        return -1 ;
+    }
+    return finish( directory , buckets , size ) ;
+  }
+
+  /**
+   * Write the header of a newly built index, and free any blocks of 
+   * the directory past the end of the index, left by an index which
+   * has moved, had more buckets, or been given up.
+   * This is a convenience method.
+   * @param directory an open file descriptor for the directory
+   * @param buckets the number of buckets; 0 to mark the directory
+   * as not indexable
+   * @param size the directory size the index matches
+   * @return 0 if successful; -1 if the header could not be written
+   * @exception java.lang.Exception if any underlying action causes
+   * an exception to be thrown
+   */
+  private static int finish( FileDescriptor directory , int buckets , 
+    int size ) throws Exception
+  {
+    if( writeHeader( directory , buckets , size ) < 0 )
+      return -1 ;
+    FileSystem fileSystem = directory.getFileSystem() ;
+    fileSystem.freeBlocks( directory.getIndexNode() , 
+      getFirstBlock( fileSystem , size ) + 1 + buckets ) ;
+    return 0 ;
+  }
+
+  /**
+   * Count the entries which fall in each bucket.
+   * This is a convenience method.
+   * @return true if any bucket has more than capacity entries
+   */
+  private static boolean overflows( int[] hashes , int buckets ,
+    int capacity , int[] counts )
+  {
+    for( int i = 0 ; i < hashes.length ; i ++ )
+      if( ++ counts[hashes[i] & ( buckets - 1 )] > capacity )
+        return true ;
+    return false ;
+  }
+
+  /**
+   * Check the header of the index of a directory.
+   * This is a convenience method.
+   * @param fileSystem the file system containing the directory
+   * @param bytes the header block
+   * @param first the sequential block number of the header
+   * @param size the directory size the index must match
+   * @return the number of buckets; 0 if there is no index or it does
+   * not match the size; -1 if the directory is marked as not 
+   * indexable
+   */
+  private static int readHeader( FileSystem fileSystem , byte[] bytes ,
+    int first , int size )
+  {
+    if( readInt( bytes , 0 ) != MAGIC )
+      return 0 ;
+    int buckets = readInt( bytes , 4 ) ;
+    if( buckets == 0 )
+      return -1 ;
+    if( readInt( bytes , 8 ) != size ||
+      buckets < 0 || ( buckets & ( buckets - 1 ) ) != 0 ||
+      buckets > fileSystem.getMaxFileBlocks() - first - 1 )
+      return 0 ;
+    return buckets ;
+  }
+
+  /**
+   * Write the header of the index of a directory.
+   * This is a convenience method.
+   * @param directory an open file descriptor for the directory
+   * @param buckets the number of buckets; 0 to mark the directory
+   * as not indexable
+   * @param size the directory size the index matches
+   * @return 0 if successful; -1 if the header could not be written
+   */
+  private static int writeHeader( FileDescriptor directory , int buckets ,
+    int size ) throws Exception
+  {
+    byte[] bytes = directory.getBytes() ;
+    for( int i = 0 ; i < bytes.length ; i ++ )
+      bytes[i] = 0 ;
+    writeInt( bytes , 0 , MAGIC ) ;
+    writeInt( bytes , 4 , buckets ) ;
+    writeInt( bytes , 8 , size ) ;
+    return directory.writeBlock( getFirstBlock( directory.getFileSystem() ,
+      directory.getSize() ) ) ;
+  }
+
+  /**
+   * Get the number of entries which fit in a bucket block.
+   * This is a convenience method.
+   */
+  private static int getBucketCapacity( FileSystem fileSystem )
+  {
+    return fileSystem.getBlockSize() / DirectoryEntry.DIRECTORY_ENTRY_SIZE - 1 ;
+  }
+
+  /**
+   * Hash a name (FNV-1a over its characters).
+   * This is a convenience method.
+   */
+  private static int hash( String name )
+  {
+    int h = 0x811c9dc5 ;
+    for( int i = 0 ; i < name.length() ; i ++ )
+    {
+      h ^= name.charAt( i ) ;
+      h *= 0x01000193 ;
+    }
+    return h ;
+  }
+
+  private static void writeInt( byte[] buffer , int offset , int value )
+  {
+    buffer[offset]   = (byte)( value >>> 24 ) ;
+    buffer[offset+1] = (byte)( value >>> 16 ) ;
+    buffer[offset+2] = (byte)( value >>> 8 ) ;
+    buffer[offset+3] = (byte)value ;
+  }
+
+  private static int readInt( byte[] buffer , int offset )
+  {
+    return ( buffer[offset] & 0xff ) << 24 |
+      ( buffer[offset+1] & 0xff ) << 16 |
+      ( buffer[offset+2] & 0xff ) << 8 |
+      ( buffer[offset+3] & 0xff ) ;
+  }
+
+}
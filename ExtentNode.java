@@ -0,0 +1,300 @@
+/**
+ * A node of the extent tree which maps the blocks of a file in a
+ * file system of the SuperBlock.FORMAT_EXTENTS format.
+ * <p>
+ * An extent is a run of sequential blocks of the file stored in
+ * consecutive data blocks, and is recorded as the first sequential
+ * block number, the first data block address, and the number of
+ * blocks in the run.  A file written sequentially onto free space
+ * needs only a handful of extents, however large it is.
+ * <p>
+ * The root node of the tree is stored in the index node itself and
+ * holds up to INDEX_NODE_EXTENTS entries; other nodes are stored one
+ * per data block.  In a node of depth zero (a leaf) each entry is
+ * an extent.  In a node of greater depth each entry is the first
+ * sequential block number mapped by a child node, and the data block
+ * address of that child, whose depth is one less.  Entries are kept
+ * in order of sequential block number.
+ * <p>
+ * On disk, a node is a 2-byte entry count and a 2-byte depth,
+ * followed by the entries at ENTRY_SIZE bytes each.
+ */
+public class ExtentNode
+{
+  /**
+   * Size of the node header in bytes.
+   */
+  public static final int HEADER_SIZE = 4 ;
+
+  /**
+   * Size of each entry in bytes.
+   */
+  public static final int ENTRY_SIZE = 12 ;
+
+  /**
+   * The number of entries which fit in the 64-byte index node after
+   * the mode, nlink, uid, gid and size.
+   */
+  public static final int INDEX_NODE_EXTENTS = 4 ;
+
+  /**
+   * The maximum number of entries in this node.
+   */
+  private int capacity = 0 ;
+
+  /**
+   * The number of entries in this node.
+   */
+  private int count = 0 ;
+
+  /**
+   * Zero if this node is a leaf; otherwise one more than the depth
+   * of its children.
+   */
+  private int depth = 0 ;
+
+  /**
+   * The first sequential block number mapped by each entry.
+   */
+  private int[] logical = null ;
+
+  /**
+   * The first data block address of each extent, or the data block
+   * address of each child node.
+   */
+  private int[] address = null ;
+
+  /**
+   * The number of blocks in each extent; unused in nodes which
+   * are not leaves.
+   */
+  private int[] length = null ;
+
+  /**
+   * Creates an empty leaf node.
+   * @param newCapacity the maximum number of entries in the node
+   */
+  public ExtentNode( int newCapacity )
+  {
+    super() ;
+    capacity = newCapacity ;
+    logical = new int[capacity] ;
+    address = new int[capacity] ;
+    length = new int[capacity] ;
+  }
+
+  /**
+   * Get the number of entries which fit in a node stored in a
+   * given number of bytes.
+   * @param bytes the number of bytes available for the node
+   * @return the capacity of the node
+   */
+  public static int getCapacity( int bytes )
+  {
+    return ( bytes - HEADER_SIZE ) / ENTRY_SIZE ;
+  }
+
+  public int getCount()
+  {
+    return count ;
+  }
+
+  public boolean isFull()
+  {
+    return count == capacity ;
+  }
+
+  public int getDepth()
+  {
+    return depth ;
+  }
+
+  public void setDepth( int newDepth )
+  {
+    depth = newDepth ;
+  }
+
+  public int getLogical( int index )
+  {
+    return logical[index] ;
+  }
+
+  public void setLogical( int index , int newLogical )
+  {
+    logical[index] = newLogical ;
+  }
+
+  public int getAddress( int index )
+  {
+    return address[index] ;
+  }
+
+  public void setAddress( int index , int newAddress )
+  {
+    address[index] = newAddress ;
+  }
+
+  public int getLength( int index )
+  {
+    return length[index] ;
+  }
+
+  public void setLength( int index , int newLength )
+  {
+    length[index] = newLength ;
+  }
+
+  /**
+   * Find the last entry whose first sequential block number is not
+   * greater than the given block.
+   * @param block the sequential block number
+   * @return the index of the entry; -1 if every entry starts after
+   * the block, or there are none
+   */
+  public int find( int block )
+  {
+    // binary search for the last entry with logical <= block
+    int lo = 0 ;
+    int hi = count - 1 ;
+    while( lo <= hi )
+    {
+      int mid = ( lo + hi ) >>> 1 ;
+      if( logical[mid] <= block )
+        lo = mid + 1 ;
+      else
+        hi = mid - 1 ;
+    }
+    return hi ;
+  }
+
+  /**
+   * Insert an entry, moving later entries up.  The node must not be
+   * full.
+   * @param index the position for the new entry
+   * @param newLogical the first sequential block number
+   * @param newAddress the data block address
+   * @param newLength the number of blocks; zero for an index entry
+   */
+  public void insert( int index , int newLogical , int newAddress ,
+    int newLength )
+  {
+    System.arraycopy( logical , index , logical , index + 1 , count - index ) ;
+    System.arraycopy( address , index , address , index + 1 , count - index ) ;
+    System.arraycopy( length , index , length , index + 1 , count - index ) ;
+    logical[index] = newLogical ;
+    address[index] = newAddress ;
+    length[index] = newLength ;
+    count ++ ;
+  }
+
+  /**
+   * Remove the entries from the specified position on.
+   * @param newCount the number of entries to keep
+   */
+  public void truncate( int newCount )
+  {
+    count = newCount ;
+  }
+
+  /**
+   * Remove every entry and make this node a leaf.
+   */
+  public void clear()
+  {
+    count = 0 ;
+    depth = 0 ;
+  }
+
+  /**
+   * Move the upper half of the entries of this node into a new node
+   * of the same depth and capacity.
+   * @return the new node
+   */
+  public ExtentNode split()
+  {
+    ExtentNode sibling = new ExtentNode( capacity ) ;
+    sibling.depth = depth ;
+    int keep = count / 2 ;
+    sibling.count = count - keep ;
+    System.arraycopy( logical , keep , sibling.logical , 0 , sibling.count ) ;
+    System.arraycopy( address , keep , sibling.address , 0 , sibling.count ) ;
+    System.arraycopy( length , keep , sibling.length , 0 , sibling.count ) ;
+    count = keep ;
+    return sibling ;
+  }
+
+  /**
+   * Copy the depth and entries of this node into another node, which
+   * must have room for them.
+   * @param node the node to which the entries should be copied
+   */
+  public void copy( ExtentNode node )
+  {
+    node.depth = depth ;
+    node.count = count ;
+    System.arraycopy( logical , 0 , node.logical , 0 , count ) ;
+    System.arraycopy( address , 0 , node.address , 0 , count ) ;
+    System.arraycopy( length , 0 , node.length , 0 , count ) ;
+  }
+
+  /**
+   * Writes the node to a byte array.
+   * @param buffer the buffer to which bytes should be written
+   * @param offset the offset from the beginning of the buffer
+   * at which bytes should be written
+   */
+  public void write( byte[] buffer , int offset )
+  {
+    buffer[offset]   = (byte)( count >>> 8 ) ;
+    buffer[offset+1] = (byte)count ;
+    buffer[offset+2] = (byte)( depth >>> 8 ) ;
+    buffer[offset+3] = (byte)depth ;
+    int entryOffset = offset + HEADER_SIZE ;
+    for( int i = 0 ; i < count ; i ++ )
+    {
+      writeInt( buffer , entryOffset , logical[i] ) ;
+      writeInt( buffer , entryOffset + 4 , address[i] ) ;
+      writeInt( buffer , entryOffset + 8 , length[i] ) ;
+      entryOffset += ENTRY_SIZE ;
+    }
+  }
+
+  /**
+   * Reads the node from a byte array.
+   * @param buffer the buffer from which bytes should be read
+   * @param offset the offset from the beginning of the buffer
+   * at which bytes should be read
+   */
+  public void read( byte[] buffer , int offset )
+  {
+    count = ( buffer[offset] & 0xff ) << 8 | ( buffer[offset+1] & 0xff ) ;
+    depth = ( buffer[offset+2] & 0xff ) << 8 | ( buffer[offset+3] & 0xff ) ;
+    if( count > capacity )
+      count = capacity ;
+    int entryOffset = offset + HEADER_SIZE ;
+    for( int i = 0 ; i < count ; i ++ )
+    {
+      logical[i] = readInt( buffer , entryOffset ) ;
+      address[i] = readInt( buffer , entryOffset + 4 ) ;
+      length[i] = readInt( buffer , entryOffset + 8 ) ;
+      entryOffset += ENTRY_SIZE ;
+    }
+  }
+
+  private static void writeInt( byte[] buffer , int offset , int value )
+  {
+    buffer[offset]   = (byte)( value >>> 24 ) ;
+    buffer[offset+1] = (byte)( value >>> 16 ) ;
+    buffer[offset+2] = (byte)( value >>> 8 ) ;
+    buffer[offset+3] = (byte)value ;
+  }
+
+  private static int readInt( byte[] buffer , int offset )
+  {
+    return ( buffer[offset] & 0xff ) << 24 |
+      ( buffer[offset+1] & 0xff ) << 16 |
+      ( buffer[offset+2] & 0xff ) << 8 |
+      ( buffer[offset+3] & 0xff ) ;
+  }
+
+}
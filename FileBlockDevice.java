@@ -0,0 +1,52 @@
+import java.io.RandomAccessFile ;
+import java.io.IOException ;
+
+/**
+ * A block device stored in a file which is read and written using
+ * a RandomAccessFile.  Each operation seeks the file pointer and 
+ * then reads or writes.  Since the file pointer is shared, only one
+ * operation may be in progress at a time; ChannelBlockDevice does 
+ * not have this limitation.
+ */
+public class FileBlockDevice implements BlockDevice
+{
+  private RandomAccessFile file = null ;
+
+  /**
+   * Construct a block device and open its backing file.
+   * @param filename the name of the backing file
+   * @param mode the mode ("r" or "rw") to use when opening the file
+   * @exception java.io.IOException if the file cannot be opened
+   */
+  public FileBlockDevice( String filename , String mode ) 
+    throws IOException
+  {
+    super() ;
+    file = new RandomAccessFile( filename , mode ) ;
+  }
+
+  public synchronized void read( byte[] bytes , long position ) 
+    throws IOException
+  {
+    file.seek( position ) ;
+    file.readFully( bytes ) ;
+  }
+
+  public synchronized void write( byte[] bytes , long position ) 
+    throws IOException
+  {
+    file.seek( position ) ;
+    file.write( bytes ) ;
+  }
+
+  public void force() throws IOException
+  {
+    file.getFD().sync() ;
+  }
+
+  public void close() throws IOException
+  {
+    file.close() ;
+  }
+
+}
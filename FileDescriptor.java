@@ -25,6 +25,78 @@ public class FileDescriptor
   private int offset = 0 ;
   private byte[] bytes = null ;
 
+  /**
+   * The slot of the kernel's open file table which holds this file
+   * descriptor; -1 if it is not in the table.
+   */
+  private int kernelSlot = -1 ;
+
+  /**
+   * The contents of the indirect block which was most recently used to
+   * map a block of this file, so that sequential access does not 
+   * need to read it again for every block.  In file systems whose
+   * files are mapped by extents, it is used to read extent tree nodes.
+   */
+  private byte[] indirectBytes = null ;
+
+  /**
+   * The data block address of the cached indirect block; 
+   * FileSystem.NOT_A_BLOCK if none is cached.
+   */
+  private int indirectAddress = FileSystem.NOT_A_BLOCK ;
+
+  /**
+   * The first sequential block of the file mapped by the cached 
+   * indirect block.
+   */
+  private int indirectFirstBlock = 0 ;
+
+  /**
+   * The extent which most recently mapped a block of this file, in
+   * file systems whose files are mapped by extents: its first 
+   * sequential block number, first data block address and length.
+   * The length is zero if no extent is cached.
+   */
+  private int[] extent = new int[3] ;
+
+  /**
+   * The sequential block of the file whose contents are in bytes;
+   * -1 if bytes doesn't hold a block as it is in the file.
+   */
+  private int bufferBlock = -1 ;
+
+  /**
+   * The modification count of the index node when the buffer, the
+   * cached indirect block and the cached extent were known to be
+   * up to date.  If it has changed, the file has been changed 
+   * through another file descriptor, and they must be read again.
+   */
+  private int modificationCount = 0 ;
+
+  /**
+   * The number of blocks read ahead the first time this file is
+   * found to be read sequentially.
+   */
+  public static final int INITIAL_READ_AHEAD_BLOCKS = 4 ;
+
+  /**
+   * The sequential block which will be read next if the file is 
+   * being read sequentially.
+   */
+  private int nextSequentialBlock = 0 ;
+
+  /**
+   * The number of blocks most recently read ahead; zero if the file
+   * is not being read sequentially.
+   */
+  private int readAheadWindow = 0 ;
+
+  /**
+   * The first sequential block after those which have been read 
+   * ahead.
+   */
+  private int readAheadEnd = 0 ;
+
   FileDescriptor( short newDeviceNumber , short newIndexNodeNumber , int newFlags )
     throws IOException
   {
@@ -33,21 +105,73 @@ public class FileDescriptor
     indexNodeNumber = newIndexNodeNumber ;
     flags = newFlags ;
     fileSystem = Kernel.openFileSystems[ deviceNumber ] ;
-    indexNode = new IndexNode() ;
-    fileSystem.readIndexNode( indexNode , indexNodeNumber ) ;
+    indexNode = fileSystem.getIndexNode( indexNodeNumber ) ;
+    modificationCount = indexNode.getModificationCount() ;
     bytes = new byte[fileSystem.getBlockSize()] ;
   }
 
+  /**
+   * Construct a file descriptor for an index node obtained from
+   * FileSystem.getIndexNode().  The file descriptor takes over the
+   * caller's reference to the index node, and gives it back when
+   * it is closed.
+   */
   FileDescriptor( FileSystem newFileSystem , IndexNode newIndexNode ,
     int newFlags )
   {
     super() ;
     fileSystem = newFileSystem ;
     indexNode = newIndexNode ;
+    indexNodeNumber = indexNode.getIndexNodeNumber() ;
+    modificationCount = indexNode.getModificationCount() ;
     flags = newFlags ;
     bytes = new byte[fileSystem.getBlockSize()] ;
   }
 
+  /**
+   * Write the index node to the file system if it has changed since
+   * it was last written.  Changes to the size and block addresses 
+   * of the file only mark the index node dirty, so that it is 
+   * written once rather than every time the file grows.
+   * @exception java.io.IOException if the index node can't be written
+   */
+  public void flush() throws IOException
+  {
+    if( indexNode.isDirty() )
+      fileSystem.writeIndexNode( indexNode , indexNodeNumber ) ;
+  }
+
+  /**
+   * Write the index node if it has changed, and give back this file
+   * descriptor's reference to it.  The file descriptor must not be
+   * used afterwards.
+   * @exception java.io.IOException if the index node can't be written
+   */
+  public void close() throws IOException
+  {
+    if( indexNode != null )
+    {
+      flush() ;
+      fileSystem.releaseIndexNode( indexNode ) ;
+      indexNode = null ;
+    }
+  }
+
+  public FileSystem getFileSystem()
+  {
+    return fileSystem ;
+  }
+
+  public void setKernelSlot( int newKernelSlot )
+  {
+    kernelSlot = newKernelSlot ;
+  }
+
+  public int getKernelSlot()
+  {
+    return kernelSlot ;
+  }
+
   public void setDeviceNumber( short newDeviceNumber )
   {
     deviceNumber = newDeviceNumber ;
@@ -97,8 +221,8 @@ public class FileDescriptor
   {
     indexNode.setSize( newSize ) ;
 
-    // write the inode
-    fileSystem.writeIndexNode( indexNode , indexNodeNumber ) ;
+    // the inode is written when the file is closed
+    indexNode.setDirty( true ) ;
   }
 
   public short getBlockSize()
@@ -116,18 +240,30 @@ public class FileDescriptor
     offset = newOffset ; 
   }
 
-  public int readBlock( short relativeBlockNumber ) 
+  /**
+   * Read a sequential block of the file into the buffer returned by
+   * getBytes(), unless it is already there.
+   * @param relativeBlockNumber the sequential block number
+   * @return 0 if successful; -1 if the block is beyond the largest
+   * file size
+   * @exception java.lang.Exception if any exception occurs in an 
+   * underlying operation
+   */
+  public int readBlock( int relativeBlockNumber ) 
     throws Exception
   {
-    if( relativeBlockNumber >= IndexNode.MAX_FILE_BLOCKS )
+    if( relativeBlockNumber >= fileSystem.getMaxFileBlocks() )
     {
       Kernel.setErrno( Kernel.EFBIG ) ;
       return -1 ;
     }
-    // ask the IndexNode for the actual block number 
-    // given the relative block number
-    int blockOffset = 
-      indexNode.getBlockAddress( relativeBlockNumber ) ;
+    checkModificationCount() ;
+    if( relativeBlockNumber == bufferBlock )
+      return 0 ;
+    bufferBlock = -1 ;
+    // ask the IndexNode (or its indirect blocks) for the actual 
+    // block number given the relative block number
+    int blockOffset = getBlockAddress( relativeBlockNumber ) ;
 
     if( blockOffset == FileSystem.NOT_A_BLOCK )
     {
@@ -142,40 +278,353 @@ public class FileDescriptor
       fileSystem.read( bytes , 
         fileSystem.getDataBlockOffset() + blockOffset ) ;
     }
+    bufferBlock = relativeBlockNumber ;
+
+    readAhead( relativeBlockNumber ) ;
     return 0 ;
   }
 
-  public int writeBlock( short relativeBlockNumber ) 
+  /**
+   * Write the buffer returned by getBytes() to a sequential block of
+   * the file, allocating the block if necessary.
+   * @param relativeBlockNumber the sequential block number
+   * @return 0 if successful; -1 if the block is beyond the largest
+   * file size, or could not be allocated
+   * @exception java.lang.Exception if any exception occurs in an 
+   * underlying operation
+   */
+  public int writeBlock( int relativeBlockNumber ) 
     throws Exception
   {
-    if( relativeBlockNumber >= IndexNode.MAX_FILE_BLOCKS )
+    // the buffer no longer holds a block as it is in the file, 
+    // until it has been written
+    bufferBlock = -1 ;
+    if( relativeBlockNumber >= fileSystem.getMaxFileBlocks() )
     {
       Kernel.setErrno( Kernel.EFBIG ) ;
       return -1 ;
     }
-    // ask the IndexNode for the actual block number 
-    // given the relative block number
-    int blockOffset = 
-      indexNode.getBlockAddress( relativeBlockNumber ) ;
+    checkModificationCount() ;
+    // ask the IndexNode (or its indirect blocks) for the actual 
+    // block number given the relative block number
+    int blockOffset = getBlockAddress( relativeBlockNumber ) ;
 
     if( blockOffset == FileSystem.NOT_A_BLOCK )
     {
-      // allocate a block; quit if we can't
-      blockOffset = fileSystem.allocateBlock() ;
-      if( blockOffset < 0 )
+      // allocate a block, preferably the one after the previous 
+      // block of the file; quit if we can't
+      int[] blocks = new int[1] ;
+      if( fileSystem.allocateBlocks( getGoal( relativeBlockNumber ) , 1 , 
+        blocks ) < 0 )
         return -1 ;
+      blockOffset = blocks[0] ;
 
-      // update the inode
-      indexNode.setBlockAddress( relativeBlockNumber , blockOffset ) ;
-      // write the inode
-      fileSystem.writeIndexNode( indexNode , indexNodeNumber ) ;
+      // update the inode, indirect block or extent tree; give the 
+      // block back if we can't
+      if( setBlockAddress( relativeBlockNumber , blockOffset ) < 0 )
+      {
+        fileSystem.freeBlock( blockOffset ) ;
+        return -1 ;
+      }
+      // the inode is written when the file is closed
+      indexNode.setDirty( true ) ;
     }
 
-    // write the actual block from bytes
-    fileSystem.write( bytes ,  
-      fileSystem.getDataBlockOffset() + blockOffset ) ;
+    // write the actual block from bytes; a directory block may name
+    // newly allocated index nodes
+    fileSystem.write( bytes , 
+      fileSystem.getDataBlockOffset() + blockOffset ,
+      ( getMode() & Kernel.S_IFMT ) == Kernel.S_IFDIR ) ;
+    modified() ;
+    bufferBlock = relativeBlockNumber ;
 
     return 0 ;
   }
 
+  /**
+   * Allocate data blocks for a range of sequential blocks of this 
+   * file which are about to be written in full, so that they can be 
+   * placed contiguously after the preceding block of the file rather 
+   * than being allocated one at a time as they are written.  Blocks 
+   * which are already allocated are left alone.  The index node is 
+   * marked dirty if anything was allocated.  If we run out of space, we 
+   * stop quietly and leave the remaining blocks to be allocated (and 
+   * the error to be reported) by writeBlock().
+   * @param relativeBlockNumber the first sequential block number
+   * @param count the number of blocks
+   * @return the number of blocks allocated
+   * @exception java.lang.Exception if any exception occurs in an 
+   * underlying operation
+   */
+  public int allocateBlocks( int relativeBlockNumber , int count )
+    throws Exception
+  {
+    int end = (int)Math.min( (long)relativeBlockNumber + count , 
+      fileSystem.getMaxFileBlocks() ) ;
+    int[] blocks = new int[Math.max( end - relativeBlockNumber , 0 )] ;
+    int total = 0 ;
+    checkModificationCount() ;
+    int block = relativeBlockNumber ;
+    allocate:
+    while( block < end )
+    {
+      // skip blocks which are already allocated
+      if( getBlockAddress( block ) != FileSystem.NOT_A_BLOCK )
+      {
+        block ++ ;
+        continue ;
+      }
+
+      // allocate as many blocks as there are unallocated ones in a row
+      int wanted = 1 ;
+      while( block + wanted < end && 
+        getBlockAddress( block + wanted ) == FileSystem.NOT_A_BLOCK )
+        wanted ++ ;
+      int allocated = fileSystem.allocateBlocks( getGoal( block ) , 
+        wanted , blocks ) ;
+      if( allocated < 0 )
+        break ;
+
+      for( int i = 0 ; i < allocated ; i ++ )
+      {
+        if( setBlockAddress( block , blocks[i] ) < 0 )
+        {
+          // give back the blocks we couldn't map
+          for( int j = i ; j < allocated ; j ++ )
+            fileSystem.freeBlock( blocks[j] ) ;
+          break allocate ;
+        }
+        block ++ ;
+        total ++ ;
+      }
+    }
+
+    // the inode is written when the file is closed
+    if( total > 0 )
+    {
+      indexNode.setDirty( true ) ;
+      modified() ;
+    }
+    return total ;
+  }
+
+  /**
+   * Read blocks ahead into the block cache if the file is being
+   * read sequentially.  The first time a block follows the one read 
+   * before it, INITIAL_READ_AHEAD_BLOCKS are read ahead; each time
+   * the reader gets half way through the blocks read ahead, twice
+   * as many more are read ahead, up to the file system's limit.  A
+   * block which doesn't follow the one read before it stops reading
+   * ahead until the file is read sequentially again.
+   * This is a convenience method.
+   * @param relativeBlockNumber the sequential block just read
+   * @exception java.lang.Exception if any exception occurs in an 
+   * underlying operation
+   */
+  private void readAhead( int relativeBlockNumber ) throws Exception
+  {
+    int maxWindow = fileSystem.getReadAheadBlocks() ;
+    boolean sequential = relativeBlockNumber == nextSequentialBlock ;
+    nextSequentialBlock = relativeBlockNumber + 1 ;
+    if( ! sequential || maxWindow == 0 )
+    {
+      readAheadWindow = 0 ;
+      readAheadEnd = 0 ;
+      return ;
+    }
+    if( readAheadEnd - relativeBlockNumber > readAheadWindow / 2 )
+      return ;
+
+    if( readAheadWindow == 0 )
+      readAheadWindow = Math.min( INITIAL_READ_AHEAD_BLOCKS , maxWindow ) ;
+    else
+      readAheadWindow = Math.min( readAheadWindow * 2 , maxWindow ) ;
+
+    // read ahead the allocated blocks in the window which we have 
+    // not read ahead already, up to the end of the file
+    int blockSize = fileSystem.getBlockSize() ;
+    int start = Math.max( relativeBlockNumber + 1 , readAheadEnd ) ;
+    int end = (int)Math.min( (long)relativeBlockNumber + 1 + readAheadWindow ,
+      ( (long)getSize() + blockSize - 1 ) / blockSize ) ;
+    if( start >= end )
+      return ;
+    int[] addresses = new int[end - start] ;
+    int count = 0 ;
+    for( int block = start ; block < end ; block ++ )
+    {
+      int address = getBlockAddress( block ) ;
+      if( address != FileSystem.NOT_A_BLOCK )
+        addresses[count ++] = address ;
+    }
+    readAheadEnd = end ;
+    fileSystem.readAhead( addresses , count ) ;
+  }
+
+  /**
+   * Forget the buffer, the cached indirect block and the cached 
+   * extent if the file has been changed through another file 
+   * descriptor since they were loaded.
+   * This is a convenience method.
+   */
+  private void checkModificationCount()
+  {
+    if( indexNode.getModificationCount() != modificationCount )
+    {
+      bufferBlock = -1 ;
+      indirectAddress = FileSystem.NOT_A_BLOCK ;
+      extent[2] = 0 ;
+      modificationCount = indexNode.getModificationCount() ;
+    }
+  }
+
+  /**
+   * Record that this file descriptor has changed the file, so that
+   * other file descriptors for it know to forget what they have 
+   * cached.  What this one has cached is kept up to date as it goes.
+   * This is a convenience method.
+   */
+  private void modified()
+  {
+    modificationCount = indexNode.getModificationCount() + 1 ;
+    indexNode.setModificationCount( modificationCount ) ;
+  }
+
+  /**
+   * Get the data block at which we would like to place a sequential
+   * block of this file: the one after the data block of the 
+   * preceding sequential block, if there is one.
+   * This is a convenience method.
+   * @param relativeBlockNumber the sequential block number
+   * @return the data block number; FileSystem.NOT_A_BLOCK if there is 
+   * no preference
+   * @exception java.lang.Exception if any exception occurs in an 
+   * underlying operation
+   */
+  private int getGoal( int relativeBlockNumber ) throws Exception
+  {
+    if( relativeBlockNumber == 0 )
+      return FileSystem.NOT_A_BLOCK ;
+    int previous = getBlockAddress( relativeBlockNumber - 1 ) ;
+    if( previous == FileSystem.NOT_A_BLOCK )
+      return FileSystem.NOT_A_BLOCK ;
+    return previous + 1 ;
+  }
+
+  /**
+   * Get the data block address of a sequential block of this file,
+   * using the cached indirect block or extent if it maps the block.
+   * This is a convenience method.
+   * @param relativeBlockNumber the sequential block number
+   * @return the data block address; FileSystem.NOT_A_BLOCK if the block
+   * has not been allocated
+   * @exception java.lang.Exception if any exception occurs in an 
+   * underlying operation
+   */
+  private int getBlockAddress( int relativeBlockNumber ) throws Exception
+  {
+    if( fileSystem.usesExtents() )
+    {
+      if( relativeBlockNumber < extent[0] || 
+        relativeBlockNumber >= extent[0] + extent[2] )
+      {
+        extent[2] = 0 ;
+        if( indirectBytes == null )
+          indirectBytes = new byte[fileSystem.getBlockSize()] ;
+        fileSystem.getExtent( indexNode , relativeBlockNumber , extent , 
+          indirectBytes ) ;
+        if( extent[2] == 0 )
+          return FileSystem.NOT_A_BLOCK ;
+      }
+      return extent[1] + relativeBlockNumber - extent[0] ;
+    }
+
+    if( relativeBlockNumber < IndexNode.MAX_DIRECT_BLOCKS )
+      return indexNode.getBlockAddress( relativeBlockNumber ) ;
+
+    if( ! loadIndirectBlock( relativeBlockNumber , false ) )
+      return FileSystem.NOT_A_BLOCK ;
+    return fileSystem.getAddress( indirectBytes , 
+      relativeBlockNumber - indirectFirstBlock ) ;
+  }
+
+  /**
+   * Set the data block address of a sequential block of this file
+   * in the inode or extent tree or, through the cached indirect block, 
+   * on disk.  Any indirect block needed is allocated.
+   * This is a convenience method.
+   * @param relativeBlockNumber the sequential block number
+   * @param address the data block address
+   * @return 0 if successful; -1 if an indirect block or extent tree
+   * node was needed and none could be allocated
+   * @exception java.lang.Exception if any exception occurs in an 
+   * underlying operation
+   */
+  private int setBlockAddress( int relativeBlockNumber , int address )
+    throws Exception
+  {
+    if( fileSystem.usesExtents() )
+    {
+      if( fileSystem.setBlockAddress( indexNode , relativeBlockNumber , 
+        address ) < 0 )
+        return -1 ;
+      // a block which continues the cached extent on disk extends it
+      // in the tree too; otherwise we look it up again when needed
+      if( extent[2] > 0 && relativeBlockNumber == extent[0] + extent[2] &&
+        address == extent[1] + extent[2] )
+        extent[2] ++ ;
+      else
+        extent[2] = 0 ;
+      return 0 ;
+    }
+
+    if( relativeBlockNumber < IndexNode.MAX_DIRECT_BLOCKS )
+    {
+      indexNode.setBlockAddress( relativeBlockNumber , address ) ;
+      return 0 ;
+    }
+    if( ! loadIndirectBlock( relativeBlockNumber , true ) )
+      return -1 ;
+    fileSystem.setAddress( indirectBytes , 
+      relativeBlockNumber - indirectFirstBlock , address ) ;
+    fileSystem.write( indirectBytes , 
+      fileSystem.getDataBlockOffset() + indirectAddress , true ) ;
+    return 0 ;
+  }
+
+  /**
+   * Make sure the cached indirect block is the one which maps the 
+   * specified sequential block of this file.
+   * This is a convenience method.
+   * @param relativeBlockNumber the sequential block number
+   * @param allocate true if missing indirect blocks should be allocated
+   * @return true if the indirect block is cached; false if it does
+   * not exist, or could not be allocated
+   * @exception java.lang.Exception if any exception occurs in an 
+   * underlying operation
+   */
+  private boolean loadIndirectBlock( int relativeBlockNumber , 
+    boolean allocate ) throws Exception
+  {
+    int firstBlock = 
+      fileSystem.getFirstIndirectlyMappedBlock( relativeBlockNumber ) ;
+    if( indirectAddress != FileSystem.NOT_A_BLOCK && 
+      indirectFirstBlock == firstBlock )
+      return true ;
+
+    // the buffer is used to walk down to the indirect block, so 
+    // whatever it held is no longer cached
+    if( indirectBytes == null )
+      indirectBytes = new byte[fileSystem.getBlockSize()] ;
+    indirectAddress = FileSystem.NOT_A_BLOCK ;
+    int address = fileSystem.getIndirectBlockAddress( indexNode , 
+      relativeBlockNumber , allocate , indirectBytes ) ;
+    if( address < 0 )
+      return false ;
+    fileSystem.read( indirectBytes , 
+      fileSystem.getDataBlockOffset() + address ) ;
+    indirectAddress = address ;
+    indirectFirstBlock = firstBlock ;
+    return true ;
+  }
+
 }
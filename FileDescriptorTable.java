@@ -0,0 +1,132 @@
+import java.util.BitSet ;
+
+/**
+ * A table of open files for the simulator kernel or for a process.
+ * Each open file is kept in a numbered slot, and a new file is always
+ * given the lowest numbered free slot, as unix does with file
+ * descriptors.
+ * <p>
+ * A bitmap of the slots in use is kept beside the table, so that the
+ * lowest free slot is found a word (64 slots) at a time rather than
+ * by looking at every slot.  The table starts small and doubles in
+ * size as more files are opened, up to its limit, if it has one.
+ * <p>
+ * The kernel's table is shared by every process, so the methods of
+ * a table are synchronized.
+ */
+public class FileDescriptorTable
+{
+  /**
+   * The number of slots a table starts with, if its limit allows.
+   */
+  public static final int INITIAL_CAPACITY = 16 ;
+
+  /**
+   * The limit of a table which may grow as large as it needs to.
+   */
+  public static final int NO_LIMIT = 0 ;
+
+  /**
+   * The most files which may be open in the table at once.
+   */
+  private int limit = 0 ;
+
+  /**
+   * The open files, indexed by slot number; null for a free slot.
+   */
+  private FileDescriptor[] files = null ;
+
+  /**
+   * The slots which are in use.
+   */
+  private BitSet used = new BitSet() ;
+
+  /**
+   * Creates an empty table.
+   * @param newLimit the most files which may be open in the table
+   * at once; NO_LIMIT (or any number less than 1) for no limit
+   */
+  public FileDescriptorTable( int newLimit )
+  {
+    super() ;
+    limit = newLimit > 0 ? newLimit : Integer.MAX_VALUE ;
+    files = new FileDescriptor[Math.max( 0 ,
+      Math.min( limit , INITIAL_CAPACITY ) )] ;
+  }
+
+  public int getLimit()
+  {
+    return limit ;
+  }
+
+  /**
+   * Get the number of files which are open in the table.
+   * @return the number of slots in use
+   */
+  public synchronized int getCount()
+  {
+    return used.cardinality() ;
+  }
+
+  /**
+   * Get the open file in a slot.
+   * @param slot the slot number
+   * @return the file descriptor; null if the slot number is out of
+   * range or the slot is free
+   */
+  public synchronized FileDescriptor get( int slot )
+  {
+    if( slot < 0 || slot >= files.length )
+      return null ;
+    return files[slot] ;
+  }
+
+  /**
+   * Put a file in the lowest numbered free slot, making the table
+   * larger if needed.
+   * @param file the file descriptor
+   * @return the slot number; -1 if the table is full
+   */
+  public synchronized int add( FileDescriptor file )
+  {
+    int slot = used.nextClearBit( 0 ) ;
+    if( slot >= limit )
+      return -1 ;
+
+    // double the table, up to its limit, if the slot is past the end
+    if( slot >= files.length )
+    {
+      FileDescriptor[] newFiles = new FileDescriptor[(int)Math.min( limit ,
+        Math.max( (long)files.length * 2 , INITIAL_CAPACITY ) )] ;
+      System.arraycopy( files , 0 , newFiles , 0 , files.length ) ;
+      files = newFiles ;
+    }
+
+    files[slot] = file ;
+    used.set( slot ) ;
+    return slot ;
+  }
+
+  /**
+   * Free a slot.
+   * @param slot the slot number
+   */
+  public synchronized void remove( int slot )
+  {
+    if( slot < 0 || slot >= files.length )
+      return ;
+    files[slot] = null ;
+    used.clear( slot ) ;
+  }
+
+  /**
+   * Get the lowest numbered slot in use, starting at a given slot.
+   * @param slot the slot number at which to start
+   * @return the slot number; -1 if there are no more slots in use
+   */
+  public synchronized int nextUsed( int slot )
+  {
+    return used.nextSetBit( slot ) ;
+  }
+
+}
@@ -2,8 +2,13 @@
  * $Id: FileSystem.java,v 1.7 2001/10/07 23:48:55 rayo Exp $
  */
 
-import java.io.RandomAccessFile ;
 import java.io.IOException ;
+import java.util.Arrays ;
+import java.util.concurrent.ExecutorService ;
+import java.util.concurrent.Executors ;
+import java.util.concurrent.ThreadFactory ;
+import java.util.concurrent.TimeUnit ;
+import java.util.concurrent.locks.ReentrantReadWriteLock ;
 
 /*
  * $Log: FileSystem.java,v $
@@ -31,24 +36,149 @@ import java.io.IOException ;
 
 /**
  * A simulated file system.
+ * <p>
+ * A file system may be used by several threads at once.  The free 
+ * list, the inode bitmap and the free counts are guarded by an 
+ * allocation lock, which is only held for as long as it takes to
+ * change them in memory, or to write the bitmap blocks which have
+ * changed; nothing else is locked while it is held.  Sync has a lock
+ * of its own, so that a slow sync doesn't hold up allocation.  The
+ * block cache, the index node cache and each block of index nodes
+ * also have locks of their own.
+ * The contents of files and directories are guarded by the locks of
+ * their index nodes, which the kernel takes.
  * @author Ray Ontko
  */
 public class FileSystem
 {
-  private RandomAccessFile file = null ;
-  private String filename = null ;
-  private String mode = null ;
+  private BlockDevice device = null ;
   private short blockSize = 0 ;
   private int blockCount = 0 ;
   private int freeListBlockOffset = 0 ;
+  private int inodeBitmapBlockOffset = 0 ;
   private int inodeBlockOffset = 0 ;
   private int dataBlockOffset = 0 ;
+  private int formatVersion = 0 ;
+  private int flags = 0 ;
+  private int indexNodeCount = 0 ;
+
+  /**
+   * The superblock as it was read when the file system was opened;
+   * its free counts are rewritten by sync.
+   */
+  private SuperBlock superBlock = null ;
+
+  /**
+   * True if the free block or free index node count has changed
+   * since the counts were last written to the superblock.
+   */
+  private boolean freeCountsChanged = false ;
+
+  /**
+   * True if the superblock on disk says that its free counts agree 
+   * with the bitmaps on disk.  It is marked otherwise before any 
+   * bitmap block is written.
+   */
+  private boolean countsValidOnDisk = false ;
+
+  /**
+   * True if any free list or inode bitmap block has changed in memory
+   * since it was last written.
+   */
+  private boolean bitmapsDirty = false ;
+
+  /**
+   * The number of bitmap blocks which have been written, so that sync
+   * can tell whether any were written after it took the free counts.
+   */
+  private int bitmapWriteCount = 0 ;
+
+  /**
+   * Guards the free list, the inode bitmap and the free counts.
+   */
+  private final Object allocationLock = new Object() ;
+
+  /**
+   * Held by sync, so that only one sync runs at a time.
+   */
+  private final Object syncLock = new Object() ;
+
+  /**
+   * The number of blocks held by the block cache; zero if blocks
+   * are read and written directly.
+   */
+  private int cacheBlocks = 0 ;
+
+  /**
+   * The cache through which all block reads and writes are made;
+   * null if caching is disabled.
+   */
+  private BlockCache blockCache = null ;
+
+  /**
+   * The number of index nodes the index node cache tries to hold.
+   */
+  private int cacheIndexNodes = 0 ;
+
+  /**
+   * The cache of shared, reference-counted index nodes.
+   */
+  private IndexNodeCache indexNodeCache = null ;
+
+  /**
+   * The cache of directory lookups.
+   */
+  private DirectoryEntryCache directoryEntryCache = 
+    new DirectoryEntryCache( DirectoryEntryCache.DEFAULT_CAPACITY ) ;
+
+  /**
+   * The number of entries a directory must have before it is given
+   * a hashed index; zero if directories are never indexed.
+   */
+  private int directoryIndexThreshold = DirectoryIndex.DEFAULT_THRESHOLD ;
+
+  /**
+   * The largest number of blocks to read ahead of a file which is
+   * being read sequentially; zero if blocks are not read ahead.
+   */
+  private int readAheadBlocks = DEFAULT_READ_AHEAD_BLOCKS ;
+
+  /**
+   * The background thread which reads blocks ahead into the block
+   * cache; null until it is first needed.
+   */
+  private ExecutorService readAheadExecutor = null ;
 
   private IndexNode rootIndexNode = null ;
 
   public static short ROOT_INDEX_NODE_NUMBER = 0 ;
 
-  public static int NOT_A_BLOCK = 0x00FFFFFF ;
+  /**
+   * The block address used in memory for a block which has not been
+   * allocated.  Each on-disk format has its own encoding for this,
+   * which IndexNode translates.
+   */
+  public static int NOT_A_BLOCK = -1 ;
+
+  /**
+   * The number of blocks cached if no cache size is given.
+   */
+  public static final int DEFAULT_CACHE_BLOCKS = 64 ;
+
+  /**
+   * The number of index nodes cached if no cache size is given.
+   */
+  public static final int DEFAULT_CACHE_INDEX_NODES = 256 ;
+
+  /**
+   * The largest number of blocks read ahead if no limit is given.
+   */
+  public static final int DEFAULT_READ_AHEAD_BLOCKS = 32 ;
+
+  /**
+   * The kind of block device used if no device is given.
+   */
+  public static final String DEFAULT_DEVICE = "channel" ;
   
   /**
    * Construct a FileSystem and open a FileSystem file.
@@ -59,13 +189,86 @@ public class FileSystem
    */
   public FileSystem( String newFilename , String newMode ) 
     throws IOException
+  {
+    this( newFilename , newMode , DEFAULT_CACHE_BLOCKS ) ;
+  }
+
+  /**
+   * Construct a FileSystem with a block cache of the given size and 
+   * open a FileSystem file.
+   * @param newFilename the name of the FileSystem file to open
+   * @param newMode the mode ("r" or "rw") to use when opening the file
+   * @param newCacheBlocks the number of blocks to cache; zero to 
+   * read and write blocks directly
+   * @exception java.io.IOException if any IOExceptions are thrown 
+   * during the open.
+   */
+  public FileSystem( String newFilename , String newMode , 
+    int newCacheBlocks ) throws IOException
+  {
+    this( openBlockDevice( DEFAULT_DEVICE , newFilename , newMode ) , 
+      newCacheBlocks ) ;
+  }
+
+  /**
+   * Construct a FileSystem on an open block device.
+   * @param newDevice the block device containing the FileSystem
+   * @param newCacheBlocks the number of blocks to cache; zero to 
+   * read and write blocks directly
+   * @exception java.io.IOException if any IOExceptions are thrown 
+   * while reading the superblock.
+   */
+  public FileSystem( BlockDevice newDevice , int newCacheBlocks ) 
+    throws IOException
+  {
+    this( newDevice , newCacheBlocks , DEFAULT_CACHE_INDEX_NODES ) ;
+  }
+
+  /**
+   * Construct a FileSystem on an open block device.
+   * @param newDevice the block device containing the FileSystem
+   * @param newCacheBlocks the number of blocks to cache; zero to 
+   * read and write blocks directly
+   * @param newCacheIndexNodes the number of unused index nodes the 
+   * index node cache may keep
+   * @exception java.io.IOException if any IOExceptions are thrown 
+   * while reading the superblock.
+   */
+  public FileSystem( BlockDevice newDevice , int newCacheBlocks ,
+    int newCacheIndexNodes ) throws IOException
   {
     super() ;
-    filename = newFilename ;
-    mode = newMode ;
+    device = newDevice ;
+    cacheBlocks = newCacheBlocks ;
+    cacheIndexNodes = newCacheIndexNodes ;
     open() ;
   }
 
+  /**
+   * Open a block device of the specified kind.
+   * @param type the kind of device: "file" (RandomAccessFile), 
+   * "channel" (positional FileChannel), "mmap" (memory-mapped file),
+   * or "memory" (a RAM disk loaded from the file)
+   * @param filename the name of the file backing the device
+   * @param mode the mode ("r" or "rw") to use when opening the file
+   * @return the block device; null if the type is not recognized
+   * @exception java.io.IOException if the file cannot be opened
+   */
+  public static BlockDevice openBlockDevice( String type , 
+    String filename , String mode ) throws IOException
+  {
+    if( type.equals( "file" ) )
+      return new FileBlockDevice( filename , mode ) ;
+    else if( type.equals( "channel" ) )
+      return new ChannelBlockDevice( filename , mode ) ;
+    else if( type.equals( "mmap" ) )
+      return new MappedBlockDevice( filename , mode ) ;
+    else if( type.equals( "memory" ) )
+      return new MemoryBlockDevice( filename , mode ) ;
+    else
+      return null ;
+  }
+
   /**
    * Get the blockSize for this FileSystem.
    * @return the block size in bytes
@@ -91,7 +294,30 @@ public class FileSystem
   }
 
   /**
-   * Get the rootIndexNode for this FileSystem.
+   * Get the on-disk format version for this FileSystem.
+   * @return the format version
+   * @see SuperBlock#getFormatVersion
+   */
+  public int getFormatVersion()
+  {
+    return formatVersion ;
+  }
+
+  /**
+   * Are the entries of every directory in this FileSystem kept in
+   * order of name?
+   * @return true if directories may be searched by binary search
+   * @see SuperBlock#FLAG_SORTED_DIRECTORIES
+   */
+  public boolean hasSortedDirectories()
+  {
+    return ( flags & SuperBlock.FLAG_SORTED_DIRECTORIES ) != 0 ;
+  }
+
+  /**
+   * Get the rootIndexNode for this FileSystem.  This is the shared
+   * instance from the index node cache, which holds a reference to it
+   * for as long as the file system is open.
    * @return the root index node
    */
   public IndexNode getRootIndexNode()
@@ -100,44 +326,215 @@ public class FileSystem
   }
 
   /**
-   * Open a backing file for this FileSystem and read the superblock.
-   * @exception java.io.IOException if the open or read causes 
+   * Read the superblock from the device for this FileSystem.
+   * @exception java.io.IOException if the read causes 
    * IOException to be thrown
    */
   public void open() throws IOException
   {
-    file = new RandomAccessFile( filename , mode ) ;
-
     // read the block size and other information from the superblock
-    SuperBlock superBlock = new SuperBlock() ;
-    superBlock.read( file ) ;
+    superBlock = new SuperBlock() ;
+    superBlock.read( device ) ;
     blockSize = superBlock.getBlockSize() ;
     blockCount = superBlock.getBlocks() ;
-    // ??? inodeCount
     freeListBlockOffset = superBlock.getFreeListBlockOffset() ;
+    inodeBitmapBlockOffset = superBlock.getInodeBitmapBlockOffset() ;
     inodeBlockOffset = superBlock.getInodeBlockOffset() ;
     dataBlockOffset = superBlock.getDataBlockOffset() ;
+    formatVersion = superBlock.getFormatVersion() ;
+    if( formatVersion < SuperBlock.FORMAT_3_BYTE_ADDRESSES || 
+      formatVersion > SuperBlock.LATEST_FORMAT )
+      throw new IOException( "unknown file system format " + 
+        formatVersion ) ;
+    flags = superBlock.getFlags() & ~ SuperBlock.FLAG_FREE_COUNTS_VALID ;
+    countsValidOnDisk = 
+      ( superBlock.getFlags() & SuperBlock.FLAG_FREE_COUNTS_VALID ) != 0 ;
+
+    // inode numbers are shorts, so any inodes past Short.MAX_VALUE
+    // can't be used
+    indexNodeCount = (int)Math.min( Short.MAX_VALUE , 
+      (long)( dataBlockOffset - inodeBlockOffset ) * 
+      ( blockSize / IndexNode.INDEX_NODE_SIZE ) ) ;
+
+    // initialize the block cache.  A memory-mapped device is 
+    // already served from memory, so we read and write it directly
+    // rather than copying every block through a second cache.
+    if( cacheBlocks > 0 && ! ( device instanceof MappedBlockDevice ) )
+      blockCache = new BlockCache( device , blockSize , cacheBlocks ,
+        new BlockCache.Dependency()
+        {
+          public void write() throws IOException
+          {
+            writeBitmaps() ;
+          }
+        } ) ;
 
-    // initialize free list block buffer
-    freeListBitBlock = new BitBlock(blockSize) ;
+    // read the free list into memory
+    loadFreeList() ;
 
-    // initialize index block buffer
-    indexBlockBytes = new byte[blockSize] ;
+    // initialize the locks of the index node blocks
+    int indexNodesPerBlock = blockSize / IndexNode.INDEX_NODE_SIZE ;
+    indexNodeBlockLocks = new Object[( indexNodeCount + 
+      indexNodesPerBlock - 1 ) / indexNodesPerBlock] ;
+    for( int i = 0 ; i < indexNodeBlockLocks.length ; i ++ )
+      indexNodeBlockLocks[i] = new Object() ;
 
-    // read the root index node
-    rootIndexNode = new IndexNode() ;
-    readIndexNode( rootIndexNode , ROOT_INDEX_NODE_NUMBER ) ;
+    // read (or build) the inode bitmap
+    loadIndexNodeMap() ;
+
+    // read the root index node and keep it cached
+    indexNodeCache = new IndexNodeCache( this , cacheIndexNodes ) ;
+    rootIndexNode = getIndexNode( ROOT_INDEX_NODE_NUMBER ) ;
   }
 
   /**
-   * Close the backing file for this FileSystem, if any.
-   * @exception java.io.IOException if the closing the backing
-   * file causes any IOException to be thrown
+   * Close the device for this FileSystem, if any.  Any dirty
+   * blocks in the block cache are written first.
+   * @exception java.io.IOException if the closing the 
+   * device causes any IOException to be thrown
    */
   public void close() throws IOException
   {
-    if( file != null )
-      file.close() ;
+    if( readAheadExecutor != null )
+    {
+      // let any blocks being read ahead finish
+      readAheadExecutor.shutdown() ;
+      try
+      {
+        readAheadExecutor.awaitTermination( 1 , TimeUnit.MINUTES ) ;
+      }
+      catch( InterruptedException e )
+      {
+        Thread.currentThread().interrupt() ;
+      }
+      readAheadExecutor = null ;
+    }
+    if( device != null )
+    {
+      sync() ;
+      device.close() ;
+    }
+  }
+
+  /**
+   * Write the changed free list and inode bitmap blocks, any dirty 
+   * cached index nodes, any dirty blocks in the block cache, and the
+   * free counts in the superblock to the device, and force the device
+   * to write them to the underlying storage.
+   * <p>
+   * The writes are ordered so that a crash part way through never
+   * leaves a block which is referred to by an index node or indirect
+   * block marked free on disk.  The bitmaps are written first, while
+   * blocks freed since the last sync are still marked allocated; then 
+   * the index nodes and other blocks, which no longer refer to the 
+   * freed blocks, are written and forced; only then are the freed 
+   * blocks marked free and the free list written again.  At worst a
+   * crash loses some free blocks, which is safe.  Between syncs, the
+   * bitmaps are written whenever a block which may refer to newly 
+   * allocated blocks or index nodes is about to reach the device, so
+   * that those are never marked free on disk.  The superblock is
+   * marked as having stale free counts before the bitmaps are written,
+   * and the new counts are written last.  Blocks freed by freeBlocks(),
+   * whose index nodes have already been written, are released too, if
+   * they haven't been already.
+   * <p>
+   * Only one sync runs at a time, but the allocation lock is held 
+   * only while the bitmaps are written, so blocks and index nodes may
+   * be allocated and freed while sync writes everything else.
+   * @exception java.io.IOException if there are any exceptions during
+   * the write to the underlying "file system" file.
+   */
+  public void sync() throws IOException
+  {
+    synchronized( syncLock )
+    {
+      // the free counts in the superblock won't agree with the bitmaps
+      // while they are being written, so say so first.  The blocks
+      // freed so far are set aside to be released below; blocks freed 
+      // from now on wait for the next sync.
+      boolean countsChanged ;
+      long[] released = null ;
+      synchronized( allocationLock )
+      {
+        countsChanged = freeCountsChanged ;
+        if( countsChanged && countsValidOnDisk )
+          writeSuperBlock( false , 0 , 0 ) ;
+        if( freedBlockCount > 0 || unreferencedBlockCount > 0 )
+        {
+          released = freedBlocks ;
+          for( int word = 0 ; word < released.length ; word ++ )
+            released[word] |= unreferencedBlocks[word] ;
+          releasingBlockCount += freedBlockCount + unreferencedBlockCount ;
+          freedBlocks = new long[released.length] ;
+          unreferencedBlocks = new long[released.length] ;
+          freedBlockCount = 0 ;
+          unreferencedBlockCount = 0 ;
+        }
+      }
+
+      writeBitmaps() ;
+      indexNodeCache.flush() ;
+      if( blockCache != null )
+        blockCache.flush() ;
+      device.force() ;
+
+      if( ! countsChanged )
+        return ;
+
+      // nothing on disk refers to the released blocks any more.  The
+      // bitmaps written here, and the counts taken with them, include
+      // whatever was allocated or freed while we were writing.
+      int freeBlocks ;
+      int freeIndexNodes ;
+      int writes ;
+      synchronized( allocationLock )
+      {
+        if( released != null )
+          releaseFreedBlocks( released ) ;
+        writeBitmaps() ;
+        freeBlocks = freeBlockCount ;
+        freeIndexNodes = freeIndexNodeCount ;
+        writes = bitmapWriteCount ;
+        freeCountsChanged = false ;
+      }
+      if( blockCache != null )
+        blockCache.flush() ;
+      device.force() ;
+
+      // if the block cache wrote the bitmaps again, they may no longer
+      // match the counts, which are then left marked stale
+      synchronized( allocationLock )
+      {
+        if( bitmapWriteCount == writes )
+          writeSuperBlock( true , freeBlocks , freeIndexNodes ) ;
+        else
+          freeCountsChanged = true ;
+      }
+    }
+  }
+
+  /**
+   * Write the free block and free index node counts to the 
+   * superblock, and force the device to write it.  The caller must
+   * hold the allocation lock.  This is a convenience method.
+   * @param countsValid true if the counts agree with the bitmaps on 
+   * disk
+   * @param freeBlocks the number of free data blocks
+   * @param freeIndexNodes the number of free index nodes
+   * @exception java.io.IOException if the superblock can't be written
+   */
+  private void writeSuperBlock( boolean countsValid , int freeBlocks , 
+    int freeIndexNodes ) throws IOException
+  {
+    superBlock.setFreeBlockCount( freeBlocks ) ;
+    superBlock.setFreeIndexNodeCount( freeIndexNodes ) ;
+    if( countsValid )
+      superBlock.setFlags( flags | SuperBlock.FLAG_FREE_COUNTS_VALID ) ;
+    else
+      superBlock.setFlags( flags ) ;
+    superBlock.write( device ) ;
+    device.force() ;
+    countsValidOnDisk = countsValid ;
   }
 
   /**
@@ -150,8 +547,77 @@ public class FileSystem
    */
   public void read( byte[] bytes , int blockNumber ) throws IOException
   {
-    file.seek( blockNumber * blockSize ) ;
-    file.readFully( bytes ) ;
+    if( blockCache != null )
+    {
+      blockCache.read( bytes , blockNumber ) ;
+      return ;
+    }
+    device.read( bytes , (long)blockNumber * blockSize ) ;
+  }
+
+  /**
+   * Get the largest number of blocks which should be read ahead of
+   * a file which is being read sequentially.  This is never more 
+   * than half the block cache, so that blocks read ahead are not
+   * pushed out of the cache before they are used.
+   * @return the number of blocks; zero if blocks are not read ahead
+   */
+  public int getReadAheadBlocks()
+  {
+    if( blockCache == null )
+      return 0 ;
+    return Math.min( readAheadBlocks , blockCache.getCapacity() / 2 ) ;
+  }
+
+  public void setReadAheadBlocks( int newReadAheadBlocks )
+  {
+    readAheadBlocks = newReadAheadBlocks ;
+  }
+
+  /**
+   * Start reading data blocks into the block cache on a background
+   * thread, so that they are already there when they are read.
+   * Reading ahead is only a hint: if a block can't be read, the 
+   * error is reported when it is actually read.
+   * @param addresses the data block addresses
+   * @param count the number of addresses to use
+   */
+  public void readAhead( int[] addresses , int count )
+  {
+    if( blockCache == null || count == 0 )
+      return ;
+    final int[] blocks = new int[count] ;
+    for( int i = 0 ; i < count ; i ++ )
+      blocks[i] = dataBlockOffset + addresses[i] ;
+    synchronized( this )
+    {
+      if( readAheadExecutor == null )
+        readAheadExecutor = Executors.newSingleThreadExecutor( 
+          new ThreadFactory()
+          {
+            public Thread newThread( Runnable runnable )
+            {
+              Thread thread = new Thread( runnable , "read-ahead" ) ;
+              thread.setDaemon( true ) ;
+              return thread ;
+            }
+          } ) ;
+    }
+    readAheadExecutor.execute( new Runnable()
+    {
+      public void run()
+      {
+        try
+        {
+          for( int i = 0 ; i < blocks.length ; i ++ )
+            blockCache.prefetch( blocks[i] ) ;
+        }
+        catch( IOException e )
+        {
+          // leave it to the reader
+        }
+      }
+    } ) ;
   }
 
   /**
@@ -164,205 +630,1482 @@ public class FileSystem
    */
   public void write( byte[] bytes , int blockNumber ) throws IOException
   {
-    file.seek( blockNumber * blockSize ) ;
-    file.write( bytes ) ;
+    write( bytes , blockNumber , false ) ;
   }
 
-  private int currentFreeListBitNumber = 0 ;
-  private int currentFreeListBlock = -1 ;  
-  private BitBlock freeListBitBlock = null ;
-
   /**
-   * Mark a data block as being free in the free list.
-   * @param dataBlockNumber the data block which is to be marked free
-   * @exception java.io.IOException if any exception occurs during an
-   * operation on the underlying "file system" file.
+   * Write bytes from a buffer to the specified absolute block number
+   * of the file system.  A metadata block, which holds block addresses
+   * or index node numbers, isn't written to the device until the 
+   * free list and inode bitmap blocks which have changed have been, 
+   * so that a crash never leaves a block or index node it refers to 
+   * marked free on disk.
+   * @param bytes the byte buffer from which the block should be written
+   * @param blockNumber the absolute block number which should be written
+   * @param metadata true if the block is an index node block, an 
+   * indirect block, an extent tree node or a directory block
+   * @exception java.io.IOException if there are any exceptions during
+   * the write to the underlying "file system" file.
    */
-  public void freeBlock( int dataBlockNumber )
+  public void write( byte[] bytes , int blockNumber , boolean metadata ) 
     throws IOException
   {
-    loadFreeListBlock( dataBlockNumber ) ;
+    if( blockCache != null )
+    {
+      blockCache.write( bytes , blockNumber , metadata ) ;
+      return ;
+    }
+    if( metadata )
+      writeBitmaps() ;
+    device.write( bytes , (long)blockNumber * blockSize ) ;
+  }
 
-    freeListBitBlock.resetBit( dataBlockNumber % ( blockSize * 8 ) ) ;
+  /**
+   * Get the number of block addresses which fit in an indirect block.
+   * @return the number of addresses per block
+   */
+  public int getAddressesPerBlock()
+  {
+    return blockSize / IndexNode.getBlockAddressSize( formatVersion ) ;
+  }
 
-    file.seek( ( freeListBlockOffset + currentFreeListBlock ) *
-      blockSize ) ;
-    freeListBitBlock.write( file ) ;
+  /**
+   * Get the maximum number of blocks in a file.  This is the number 
+   * of direct blocks plus the number of blocks which may be mapped by
+   * the indirect, double indirect and triple indirect blocks, but
+   * no more than will keep the size of the file in bytes within an int.
+   * Files mapped by extents are limited only by the latter.
+   * @return the maximum number of blocks
+   */
+  public int getMaxFileBlocks()
+  {
+    if( usesExtents() )
+      return Integer.MAX_VALUE / blockSize ;
+    long n = getAddressesPerBlock() ;
+    long blocks = IndexNode.MAX_DIRECT_BLOCKS + n + n * n + n * n * n ;
+    return (int)Math.min( blocks , Integer.MAX_VALUE / blockSize ) ;
   }
 
   /**
-   * Allocate a data block from the list of free blocks.
-   * @return the data block number which was allocated; -1 if no blocks 
-   * are available
-   * @exception java.io.IOException if any exception occurs during an
-   * operation on the underlying "file system" file.
+   * Get the first sequential block of a file whose address is stored
+   * in the same indirect block as the address of the given block.
+   * @param block a sequential block number past the direct blocks
+   * @return the first sequential block mapped by the same indirect block
    */
-  public int allocateBlock()
-    throws IOException
+  public int getFirstIndirectlyMappedBlock( int block )
   {
-    // from our current position in the free list block, 
-    // scan until we find an open position.  If we get back to 
-    // where we started, there are no free blocks and we return
-    // -1.
-    int save = currentFreeListBitNumber ;
-    while( true )
-    {
-      loadFreeListBlock( currentFreeListBitNumber ) ;
-      boolean allocated = freeListBitBlock.isBitSet( 
-        currentFreeListBitNumber % ( blockSize * 8 ) ) ;
-      int previousFreeListBitNumber = currentFreeListBitNumber ;
-      currentFreeListBitNumber ++ ;
-      // if curr bit number >= data block count, set to 0
-      if( currentFreeListBitNumber >= ( blockCount - dataBlockOffset ) )
-        currentFreeListBitNumber = 0 ;
-      if( ! allocated ) 
-      {
-        freeListBitBlock.setBit( previousFreeListBitNumber % 
-          ( blockSize * 8 ) ) ;
-        file.seek( ( freeListBlockOffset + currentFreeListBlock ) *
-          blockSize ) ;
-        freeListBitBlock.write( file ) ;
-        return previousFreeListBitNumber ;
-      }
-      if( save == currentFreeListBitNumber )
-      {
-        Kernel.setErrno( Kernel.ENOSPC ) ;
-        return -1 ; 
-      }
-    }
+    return block - 
+      ( block - IndexNode.MAX_DIRECT_BLOCKS ) % getAddressesPerBlock() ;
   }
 
   /**
-   * Loads the block containing the specified data block bit into
-   * the free list block buffer.  This is a convenience method.
-   * @param dataBlockNumber the data block number
-   * @exception java.io.IOException
+   * Get a block address from an indirect block buffer.
+   * @param bytes the contents of the indirect block
+   * @param index the index of the address within the block
+   * @return the block address; NOT_A_BLOCK if none
    */
-  private void loadFreeListBlock( int dataBlockNumber )
-    throws IOException
+  public int getAddress( byte[] bytes , int index )
   {
-    int neededFreeListBlock = dataBlockNumber / ( blockSize * 8 ) ;
+    return IndexNode.readBlockAddress( bytes , 
+      index * IndexNode.getBlockAddressSize( formatVersion ) , 
+      formatVersion ) ;
+  }
 
-    if( currentFreeListBlock != neededFreeListBlock )
-    {
-      file.seek( ( freeListBlockOffset + neededFreeListBlock ) * 
-        blockSize ) ;
-      freeListBitBlock.read( file ) ;
-      currentFreeListBlock = neededFreeListBlock ;
-    }
+  /**
+   * Set a block address in an indirect block buffer.
+   * @param bytes the contents of the indirect block
+   * @param index the index of the address within the block
+   * @param address the block address
+   */
+  public void setAddress( byte[] bytes , int index , int address )
+  {
+    IndexNode.writeBlockAddress( bytes , 
+      index * IndexNode.getBlockAddressSize( formatVersion ) , 
+      address , formatVersion ) ;
   }
 
   /**
-   * The index node number that will next be checked to see
-   * if it is available.
+   * Gets the address corresponding to the specified sequential block
+   * of a file, looking in the indirect blocks if necessary.
+   * @param indexNode the index node of the file
+   * @param block the sequential block number
+   * @param bytes a buffer of one block into which indirect blocks or
+   * extent tree nodes may be read
+   * @return the data block address; NOT_A_BLOCK if the block has not 
+   * been allocated
+   * @exception java.lang.Exception if any exception occurs in an 
+   * underlying operation
    */
-  private short currentIndexNodeNumber = 0 ;
+  public int getBlockAddress( IndexNode indexNode , int block , 
+    byte[] bytes ) throws Exception
+  {
+    if( usesExtents() )
+      return getExtent( indexNode , block , null , bytes ) ;
+    if( block < IndexNode.MAX_DIRECT_BLOCKS )
+      return indexNode.getBlockAddress( block ) ;
+
+    int indirect = 
+      getIndirectBlockAddress( indexNode , block , false , bytes ) ;
+    if( indirect == NOT_A_BLOCK )
+      return NOT_A_BLOCK ;
+    read( bytes , dataBlockOffset + indirect ) ;
+    return getAddress( bytes , ( block - IndexNode.MAX_DIRECT_BLOCKS ) % 
+      getAddressesPerBlock() ) ;
+  }
 
   /**
-   * The number of the index node block which is currently
-   * loaded into indexBlockBytes.  If no block is loaded, 
-   * this contains the value "-1".
+   * Read a sequential block of a file into a buffer, through the 
+   * block cache, without opening the file.  A block which has never 
+   * been written reads as zeros.  The buffer is also used to find 
+   * the block, so no other is needed.
+   * @param indexNode the index node of the file
+   * @param block the sequential block number
+   * @param bytes the buffer into which the block should be read
+   * @return 0 if successful; -1 if the block is beyond the largest
+   * file size
+   * @exception java.lang.Exception if any exception occurs in an 
+   * underlying operation
    */
-  private short currentIndexNodeBlock = -1 ;
+  public int readFileBlock( IndexNode indexNode , int block , 
+    byte[] bytes ) throws Exception
+  {
+    if( block >= getMaxFileBlocks() )
+    {
+      Kernel.setErrno( Kernel.EFBIG ) ;
+      return -1 ;
+    }
+    int address = getBlockAddress( indexNode , block , bytes ) ;
+    if( address == NOT_A_BLOCK )
+      Arrays.fill( bytes , 0 , blockSize , (byte)0 ) ;
+    else
+      read( bytes , dataBlockOffset + address ) ;
+    return 0 ;
+  }
 
   /**
-   * The byte buffer used for reading and writing 
-   * index node blocks.  You can think of this as
-   * a one-block cache.
+   * Sets the address corresponding to the specified sequential block
+   * of a file, allocating indirect blocks if necessary.  The caller
+   * is responsible for writing the index node.
+   * @param indexNode the index node of the file
+   * @param block the sequential block number
+   * @param address the data block address
+   * @return 0 if successful; -1 if an indirect block was needed and
+   * none could be allocated
+   * @exception java.lang.Exception if any exception occurs in an 
+   * underlying operation
    */
-  private byte[] indexBlockBytes = null ;
+  public int setBlockAddress( IndexNode indexNode , int block , 
+    int address ) throws Exception
+  {
+    if( usesExtents() )
+      return setExtentAddress( indexNode , block , address ) ;
+    if( block < IndexNode.MAX_DIRECT_BLOCKS )
+    {
+      indexNode.setBlockAddress( block , address ) ;
+      return 0 ;
+    }
+
+    byte[] bytes = new byte[blockSize] ;
+    int indirect = 
+      getIndirectBlockAddress( indexNode , block , true , bytes ) ;
+    if( indirect == NOT_A_BLOCK )
+      return -1 ;
+    read( bytes , dataBlockOffset + indirect ) ;
+    setAddress( bytes , ( block - IndexNode.MAX_DIRECT_BLOCKS ) % 
+      getAddressesPerBlock() , address ) ;
+    write( bytes , dataBlockOffset + indirect , true ) ;
+    return 0 ;
+  }
 
   /**
-   * Allocate an index node for the file system.
-   * @return the inode number for the next available index node; 
-   * -1 if there are no index nodes available.
-   * @exception java.io.IOException if there is an exception during
-   * an operation on the underlying "file system" file.
+   * Gets the address of the indirect block which holds the address
+   * of the specified sequential block of a file, walking down 
+   * through double and triple indirect blocks as necessary.  
+   * @param indexNode the index node of the file
+   * @param block the sequential block number; must not be one of the 
+   * direct blocks, and must be less than getMaxFileBlocks()
+   * @param allocate true if missing indirect blocks should be 
+   * allocated; if any are, the index node is updated in memory and
+   * the caller is responsible for writing it
+   * @param bytes a buffer of one block into which double and triple
+   * indirect blocks may be read
+   * @return the data block address of the indirect block;
+   * NOT_A_BLOCK if it doesn't exist and either allocate is false or
+   * a block could not be allocated
+   * @exception java.lang.Exception if any exception occurs in an 
+   * underlying operation
    */
-  public short allocateIndexNode() throws IOException
+  public int getIndirectBlockAddress( IndexNode indexNode , int block , 
+    boolean allocate , byte[] bytes ) throws Exception
   {
-    // from our current position in the index node block list, 
-    // scan until we find an open position.  If we get back to 
-    // where we started, there are no free inodes and we return
-    // -1.
-    short save = currentIndexNodeNumber ;
-    IndexNode temp = new IndexNode() ;
-    while( true )
-    {
-      readIndexNode( temp , currentIndexNodeNumber ) ;
-      short previousIndexNodeNumber = currentIndexNodeNumber ;
-      currentIndexNodeNumber ++ ;
-      // if curr inode >= avail inode space, set to 0
-      if( currentIndexNodeNumber >= 
-        ( ( dataBlockOffset - inodeBlockOffset ) *
-        ( blockSize / IndexNode.INDEX_NODE_SIZE ) ) ) 
-        currentIndexNodeNumber = 0 ;
-      if( temp.getNlink() == 0 )
-      {
-        // ??? should we update nlinks here?
-        return previousIndexNodeNumber ;
-      }
-      if( save == currentIndexNodeNumber )
+    // find the level of indirection needed for this block, and the 
+    // position of the block among those mapped at that level
+    int n = getAddressesPerBlock() ;
+    long remaining = block - IndexNode.MAX_DIRECT_BLOCKS ;
+    long span = n ;
+    int level = 1 ;
+    while( remaining >= span )
+    {
+      remaining -= span ;
+      span *= n ;
+      level ++ ;
+    }
+
+    int address = indexNode.getIndirectBlock( level ) ;
+    if( address == NOT_A_BLOCK )
+    {
+      if( ! allocate )
+        return NOT_A_BLOCK ;
+      address = allocateIndirectBlock() ;
+      if( address < 0 )
+        return NOT_A_BLOCK ;
+      indexNode.setIndirectBlock( level , address ) ;
+    }
+
+    // walk down to the indirect block which holds the address
+    for( int i = level ; i > 1 ; i -- )
+    {
+      span /= n ;
+      int index = (int)( remaining / span ) ;
+      remaining %= span ;
+      read( bytes , dataBlockOffset + address ) ;
+      int next = getAddress( bytes , index ) ;
+      if( next == NOT_A_BLOCK )
       {
-        // ??? it seems like we should give a different error here
-        Kernel.setErrno( Kernel.ENOSPC ) ;
-        return -1 ; 
+        if( ! allocate )
+          return NOT_A_BLOCK ;
+        next = allocateIndirectBlock() ;
+        if( next < 0 )
+          return NOT_A_BLOCK ;
+        setAddress( bytes , index , next ) ;
+        write( bytes , dataBlockOffset + address , true ) ;
       }
+      address = next ;
     }
+    return address ;
   }
 
   /**
-   * Reads an index node at the index node location specified.
-   * @param indexNode the index node
-   * @param indexNodeNumber the location
-   * @execption java.io.IOException if any exception occurs in an 
-   * underlying operation on the "file system" file.
+   * Allocate a data block for use as an indirect block, and fill it 
+   * with NOT_A_BLOCK addresses.
+   * @return the data block number which was allocated; -1 if no 
+   * blocks are available
+   * @exception java.io.IOException if any exception occurs during an
+   * operation on the underlying "file system" file.
    */
-  public void readIndexNode( IndexNode indexNode , short indexNodeNumber ) 
-    throws IOException
+  private int allocateIndirectBlock() throws IOException
   {
-    loadIndexNodeBlock( indexNodeNumber ) ;
-
-    indexNode.read( indexBlockBytes , 
-      ( indexNodeNumber * IndexNode.INDEX_NODE_SIZE ) % 
-      blockSize ) ;
+    int address = allocateBlock() ;
+    if( address < 0 )
+      return -1 ;
+    // NOT_A_BLOCK is stored as all one bits in every format
+    byte[] bytes = new byte[blockSize] ;
+    for( int i = 0 ; i < blockSize ; i ++ )
+      bytes[i] = (byte)0xff ;
+    write( bytes , dataBlockOffset + address ) ;
+    return address ;
   }
 
   /**
-   * Writes an index node at the index node location specified.
-   * @param indexNode the index node
-   * @param indexNodeNumber the location
-   * @execption java.io.IOException if any exception occurs in an 
-   * underlying operation on the "file system" file.
+   * Free all the data blocks and indirect blocks of a file, set 
+   * all its block addresses to NOT_A_BLOCK, and write its index node.
+   * Every block mapped by the index node is freed, including any 
+   * past the size of the file, such as those of a directory index.
+   * The caller must hold the write lock of the index node.  Once the
+   * index node has been written, nothing in the block cache refers 
+   * to the freed blocks, so they may be reused as soon as the block 
+   * cache has been written, without waiting for the next sync.
+   * @param indexNode the index node of the file
+   * @exception java.lang.Exception if any exception occurs in an 
+   * underlying operation
    */
-  public void writeIndexNode( IndexNode indexNode , short indexNodeNumber )
-    throws IOException
+  public void freeBlocks( IndexNode indexNode ) throws Exception
   {
-    loadIndexNodeBlock( indexNodeNumber ) ;
-
-    indexNode.write( indexBlockBytes , 
-      ( indexNodeNumber * IndexNode.INDEX_NODE_SIZE ) % 
-      blockSize ) ;
-
-    write( indexBlockBytes , inodeBlockOffset + currentIndexNodeBlock ) ;
+    freeBlocks( indexNode , 0 ) ;
   }
 
   /**
-   * Loads the block containing the specified index node into
-   * the index node block buffer.  This is a convenience method.
-   * @param indexNodeNumber the index node number
-   * @exception java.io.IOException
+   * Free the data blocks of a file from the specified sequential 
+   * block on, and any indirect blocks or extent tree nodes which no
+   * longer map a block, and write its index node.  The size of the 
+   * file is not changed.  The caller must hold the write lock of the
+   * index node.  The freed blocks are released as for freeBlocks().
+   * @param indexNode the index node of the file
+   * @param firstBlock the first sequential block to free
+   * @exception java.lang.Exception if any exception occurs in an 
+   * underlying operation
    */
-  private void loadIndexNodeBlock( short indexNodeNumber )
-    throws IOException
+  public void freeBlocks( IndexNode indexNode , int firstBlock ) 
+    throws Exception
   {
-    short neededIndexNodeBlock = (short)( indexNodeNumber / 
-      ( blockSize / IndexNode.INDEX_NODE_SIZE ) ) ;
+    indexNode.setModificationCount( indexNode.getModificationCount() + 1 ) ;
+    long[] freed = new long[freeList.length] ;
+    if( usesExtents() )
+    {
+      freeExtents( indexNode.getExtents() , firstBlock , freed ) ;
+      if( indexNode.getExtents().getCount() == 0 )
+        indexNode.getExtents().clear() ;
+    }
+    else
+    {
+      for( int i = firstBlock ; i < IndexNode.MAX_DIRECT_BLOCKS ; i ++ )
+      {
+        int address = indexNode.getBlockAddress( i ) ;
+        if( address != NOT_A_BLOCK )
+        {
+          addBlock( freed , address ) ;
+          indexNode.setBlockAddress( i , NOT_A_BLOCK ) ;
+        }
+      }
+      int n = getAddressesPerBlock() ;
+      long base = IndexNode.MAX_DIRECT_BLOCKS ;
+      long span = n ;
+      for( int level = 1 ; level <= IndexNode.MAX_INDIRECT_LEVELS ; 
+        level ++ )
+      {
+        int address = indexNode.getIndirectBlock( level ) ;
+        if( address != NOT_A_BLOCK && base + span > firstBlock &&
+          freeIndirectBlock( address , level , base , firstBlock , freed ) )
+          indexNode.setIndirectBlock( level , NOT_A_BLOCK ) ;
+        base += span ;
+        span *= n ;
+      }
+    }
 
-    if( currentIndexNodeBlock != neededIndexNodeBlock )
+    // write the index node, then set the blocks aside to be released
+    writeIndexNode( indexNode , indexNode.getIndexNodeNumber() ) ;
+    synchronized( allocationLock )
     {
-      read( indexBlockBytes , inodeBlockOffset + neededIndexNodeBlock ) ;
-      currentIndexNodeBlock = neededIndexNodeBlock ;
+      for( int word = 0 ; word < freed.length ; word ++ )
+      {
+        long bits = freed[word] & ~ unreferencedBlocks[word] ;
+        if( bits == 0 )
+          continue ;
+        unreferencedBlocks[word] |= bits ;
+        unreferencedBlockCount += Long.bitCount( bits ) ;
+        freeCountsChanged = true ;
+      }
     }
   }
+
+  /**
+   * Add a data block to a bitmap of blocks being freed.
+   * This is a convenience method.
+   * @param bitmap the bitmap
+   * @param dataBlockNumber the data block number
+   */
+  private static void addBlock( long[] bitmap , int dataBlockNumber )
+  {
+    bitmap[dataBlockNumber >>> 6] |= 1L << dataBlockNumber ;
+  }
+
+  /**
+   * Free the blocks mapped by an indirect block from a sequential 
+   * block of the file on, and the indirect block itself if it maps
+   * nothing before that block.  An indirect block which is kept is
+   * written back without the addresses of the freed blocks.
+   * This is a convenience method.
+   * @param address the data block address of the indirect block
+   * @param level 1 if the block holds data block addresses; 2 or 3
+   * if it holds addresses of indirect blocks of the next lower level
+   * @param base the first sequential block mapped by the indirect block
+   * @param firstBlock the first sequential block to free
+   * @param freed the bitmap of blocks being freed
+   * @return true if the indirect block itself was freed
+   * @exception java.io.IOException if any exception occurs during an
+   * operation on the underlying "file system" file.
+   */
+  private boolean freeIndirectBlock( int address , int level , long base ,
+    int firstBlock , long[] freed ) throws IOException
+  {
+    byte[] bytes = new byte[blockSize] ;
+    read( bytes , dataBlockOffset + address ) ;
+    int n = getAddressesPerBlock() ;
+    long span = 1 ;
+    for( int i = 1 ; i < level ; i ++ )
+      span *= n ;
+    boolean changed = false ;
+    for( int i = 0 ; i < n ; i ++ )
+    {
+      int next = getAddress( bytes , i ) ;
+      if( next == NOT_A_BLOCK || base + ( i + 1 ) * span <= firstBlock )
+        continue ;
+      if( level > 1 )
+      {
+        if( ! freeIndirectBlock( next , level - 1 , base + i * span , 
+          firstBlock , freed ) )
+          continue ;
+      }
+      else
+        addBlock( freed , next ) ;
+      setAddress( bytes , i , NOT_A_BLOCK ) ;
+      changed = true ;
+    }
+    if( base >= firstBlock )
+    {
+      addBlock( freed , address ) ;
+      return true ;
+    }
+    if( changed )
+      write( bytes , dataBlockOffset + address , true ) ;
+    return false ;
+  }
+
+  /**
+   * Determine whether the blocks of files in this file system are
+   * mapped by extent trees rather than by direct and indirect blocks.
+   * @return true if this file system is in the FORMAT_EXTENTS format
+   */
+  public boolean usesExtents()
+  {
+    return formatVersion == SuperBlock.FORMAT_EXTENTS ;
+  }
+
+  /**
+   * Find the extent which maps the specified sequential block of a
+   * file in the FORMAT_EXTENTS format.
+   * @param indexNode the index node of the file
+   * @param block the sequential block number
+   * @param extent if not null, and the block is mapped, receives the 
+   * first sequential block number, first data block address and 
+   * length of the extent, in that order
+   * @param bytes a buffer of one block into which extent tree nodes
+   * may be read
+   * @return the data block address; NOT_A_BLOCK if the block has not
+   * been allocated
+   * @exception java.io.IOException if any exception occurs during an
+   * operation on the underlying "file system" file.
+   */
+  public int getExtent( IndexNode indexNode , int block , int[] extent ,
+    byte[] bytes ) throws IOException
+  {
+    ExtentNode node = indexNode.getExtents() ;
+    int index = node.find( block ) ;
+    if( node.getDepth() > 0 )
+    {
+      // every node below the root is read into the same node
+      ExtentNode child = 
+        new ExtentNode( ExtentNode.getCapacity( blockSize ) ) ;
+      while( node.getDepth() > 0 )
+      {
+        if( index < 0 )
+          return NOT_A_BLOCK ;
+        read( bytes , dataBlockOffset + node.getAddress( index ) ) ;
+        child.read( bytes , 0 ) ;
+        node = child ;
+        index = node.find( block ) ;
+      }
+    }
+    if( index < 0 || 
+      block >= node.getLogical( index ) + node.getLength( index ) )
+      return NOT_A_BLOCK ;
+    if( extent != null )
+    {
+      extent[0] = node.getLogical( index ) ;
+      extent[1] = node.getAddress( index ) ;
+      extent[2] = node.getLength( index ) ;
+    }
+    return node.getAddress( index ) + block - node.getLogical( index ) ;
+  }
+
+  /**
+   * Record the data block address of a sequential block of a file in 
+   * the FORMAT_EXTENTS format.  The block is added to an adjacent 
+   * extent if it continues it both in the file and on disk; 
+   * otherwise a new extent is inserted.  Full nodes are split on the 
+   * way down the tree, so a failure to allocate a node leaves the 
+   * tree unchanged.  The caller is responsible for writing the 
+   * index node.
+   * @param indexNode the index node of the file
+   * @param block the sequential block number, which must not be mapped
+   * @param address the data block address
+   * @return 0 if successful; -1 if a node was needed and none could 
+   * be allocated
+   * @exception java.io.IOException if any exception occurs during an
+   * operation on the underlying "file system" file.
+   */
+  private int setExtentAddress( IndexNode indexNode , int block , 
+    int address ) throws IOException
+  {
+    ExtentNode root = indexNode.getExtents() ;
+
+    // if the root is full, move its entries into a new node below it
+    if( root.isFull() )
+    {
+      int childAddress = allocateBlock() ;
+      if( childAddress < 0 )
+        return -1 ;
+      ExtentNode child = new ExtentNode( ExtentNode.getCapacity( blockSize ) ) ;
+      root.copy( child ) ;
+      writeExtentNode( child , childAddress ) ;
+      int depth = root.getDepth() ;
+      root.clear() ;
+      root.setDepth( depth + 1 ) ;
+      root.insert( 0 , child.getLogical( 0 ) , childAddress , 0 ) ;
+    }
+
+    // walk down to the leaf, splitting any full node we pass through
+    ExtentNode node = root ;
+    int nodeAddress = NOT_A_BLOCK ;
+    while( node.getDepth() > 0 )
+    {
+      int index = node.find( block ) ;
+      if( index < 0 )
+      {
+        // the block comes before everything mapped so far
+        index = 0 ;
+        node.setLogical( 0 , block ) ;
+        if( nodeAddress != NOT_A_BLOCK )
+          writeExtentNode( node , nodeAddress ) ;
+      }
+      int childAddress = node.getAddress( index ) ;
+      ExtentNode child = readExtentNode( childAddress ) ;
+      if( child.isFull() )
+      {
+        int siblingAddress = allocateBlock() ;
+        if( siblingAddress < 0 )
+          return -1 ;
+        ExtentNode sibling = child.split() ;
+        writeExtentNode( sibling , siblingAddress ) ;
+        writeExtentNode( child , childAddress ) ;
+        node.insert( index + 1 , sibling.getLogical( 0 ) , 
+          siblingAddress , 0 ) ;
+        if( nodeAddress != NOT_A_BLOCK )
+          writeExtentNode( node , nodeAddress ) ;
+        if( block >= sibling.getLogical( 0 ) )
+        {
+          child = sibling ;
+          childAddress = siblingAddress ;
+        }
+      }
+      node = child ;
+      nodeAddress = childAddress ;
+    }
+
+    // extend the preceding or following extent if we can; 
+    // otherwise insert a new one
+    int index = node.find( block ) ;
+    if( index >= 0 && 
+      node.getLogical( index ) + node.getLength( index ) == block &&
+      node.getAddress( index ) + node.getLength( index ) == address )
+      node.setLength( index , node.getLength( index ) + 1 ) ;
+    else if( index + 1 < node.getCount() &&
+      node.getLogical( index + 1 ) == block + 1 &&
+      node.getAddress( index + 1 ) == address + 1 )
+    {
+      node.setLogical( index + 1 , block ) ;
+      node.setAddress( index + 1 , address ) ;
+      node.setLength( index + 1 , node.getLength( index + 1 ) + 1 ) ;
+    }
+    else
+      node.insert( index + 1 , block , address , 1 ) ;
+    if( nodeAddress != NOT_A_BLOCK )
+      writeExtentNode( node , nodeAddress ) ;
+    return 0 ;
+  }
+
+  /**
+   * Free the data blocks mapped by an extent tree node and by the
+   * nodes below it from a sequential block of the file on, and the
+   * blocks holding nodes which no longer map anything.  Extents are
+   * shortened or removed from the node; a child node which is kept
+   * is written back.
+   * This is a convenience method.
+   * @param node the extent tree node
+   * @param firstBlock the first sequential block to free
+   * @param freed the bitmap of blocks being freed
+   * @exception java.io.IOException if any exception occurs during an
+   * operation on the underlying "file system" file.
+   */
+  private void freeExtents( ExtentNode node , int firstBlock , 
+    long[] freed ) throws IOException
+  {
+    // entries are in order, so only the last ones need be looked at
+    int keep = node.getCount() ;
+    for( int i = node.getCount() - 1 ; i >= 0 ; i -- )
+    {
+      int logical = node.getLogical( i ) ;
+      int address = node.getAddress( i ) ;
+      if( node.getDepth() > 0 )
+      {
+        ExtentNode child = readExtentNode( address ) ;
+        freeExtents( child , firstBlock , freed ) ;
+        if( child.getCount() > 0 )
+        {
+          writeExtentNode( child , address ) ;
+          break ;
+        }
+        addBlock( freed , address ) ;
+      }
+      else
+      {
+        int length = node.getLength( i ) ;
+        int start = Math.max( firstBlock - logical , 0 ) ;
+        if( start >= length )
+          break ;
+        for( int j = start ; j < length ; j ++ )
+          addBlock( freed , address + j ) ;
+        if( start > 0 )
+        {
+          node.setLength( i , start ) ;
+          break ;
+        }
+      }
+      keep = i ;
+    }
+    node.truncate( keep ) ;
+  }
+
+  /**
+   * Read an extent tree node from a data block.
+   * This is a convenience method.
+   * @param address the data block address of the node
+   * @return the node
+   * @exception java.io.IOException if any exception occurs during an
+   * operation on the underlying "file system" file.
+   */
+  private ExtentNode readExtentNode( int address ) throws IOException
+  {
+    byte[] bytes = new byte[blockSize] ;
+    read( bytes , dataBlockOffset + address ) ;
+    ExtentNode node = new ExtentNode( ExtentNode.getCapacity( blockSize ) ) ;
+    node.read( bytes , 0 ) ;
+    return node ;
+  }
+
+  /**
+   * Write an extent tree node to a data block.
+   * This is a convenience method.
+   * @param node the node
+   * @param address the data block address of the node
+   * @exception java.io.IOException if any exception occurs during an
+   * operation on the underlying "file system" file.
+   */
+  private void writeExtentNode( ExtentNode node , int address ) 
+    throws IOException
+  {
+    byte[] bytes = new byte[blockSize] ;
+    node.write( bytes , 0 ) ;
+    write( bytes , dataBlockOffset + address , true ) ;
+  }
+
+  /**
+   * The free list bitmap, held in memory for the life of the file
+   * system.  Bit n of word w is set if data block 64 * w + n is 
+   * allocated; this matches the on-disk layout, in which bit n % 8 of
+   * byte n / 8 of the free list is set if data block n is allocated.
+   * Bits for blocks past the last data block are kept set so they
+   * are never allocated.
+   */
+  private long[] freeList = null ;
+
+  /**
+   * True for each free list block which has changed in memory since
+   * it was last written.
+   */
+  private boolean[] freeListDirty = null ;
+
+  /**
+   * The number of data blocks which are marked free in the free list.
+   */
+  private int freeBlockCount = 0 ;
+
+  /**
+   * The data blocks which have been freed since the last sync.  They
+   * are still marked allocated in the free list, so that they can't
+   * be reused, until the index nodes and indirect blocks which used
+   * to refer to them have been written.
+   */
+  private long[] freedBlocks = null ;
+
+  /**
+   * The number of data blocks which have been freed since the last
+   * sync.
+   */
+  private int freedBlockCount = 0 ;
+
+  /**
+   * The data blocks which have been freed by freeBlocks() since the
+   * last sync.  The index nodes which referred to them have been 
+   * written, so they may be marked free as soon as the block cache 
+   * has been written, without writing any other index node.
+   */
+  private long[] unreferencedBlocks = null ;
+
+  /**
+   * The number of data blocks which have been freed by freeBlocks()
+   * since the last sync.
+   */
+  private int unreferencedBlockCount = 0 ;
+
+  /**
+   * The number of data blocks which have been set aside by a sync, or
+   * by allocateBlocks(), and which will be marked free once the 
+   * block cache has been written.
+   */
+  private int releasingBlockCount = 0 ;
+
+  /**
+   * The word of the free list at which the next search for a free
+   * block will start.
+   */
+  private int currentFreeListWord = 0 ;
+
+  /**
+   * Get the number of data blocks in the file system.
+   * @return the number of data blocks
+   */
+  public int getDataBlockCount()
+  {
+    return blockCount - dataBlockOffset ;
+  }
+
+  /**
+   * Free a data block.  The block is not marked free in the free list,
+   * and so can't be allocated again, until the next sync.
+   * @param dataBlockNumber the data block which is to be marked free
+   * @exception java.io.IOException if any exception occurs during an
+   * operation on the underlying "file system" file.
+   */
+  public void freeBlock( int dataBlockNumber ) throws IOException
+  {
+    long bit = 1L << dataBlockNumber ;
+    synchronized( allocationLock )
+    {
+      if( ( freedBlocks[dataBlockNumber >>> 6] & bit ) != 0 )
+        return ;
+      freedBlocks[dataBlockNumber >>> 6] |= bit ;
+      freedBlockCount ++ ;
+      freeCountsChanged = true ;
+    }
+  }
+
+  /**
+   * Mark freed blocks as free in the free list.  The caller must hold
+   * the allocation lock.  This is a convenience method.
+   * @param released the bitmap of blocks to mark free
+   */
+  private void releaseFreedBlocks( long[] released )
+  {
+    for( int word = 0 ; word < released.length ; word ++ )
+    {
+      if( released[word] == 0 )
+        continue ;
+      int count = Long.bitCount( released[word] ) ;
+      freeBlockCount += count ;
+      releasingBlockCount -= count ;
+      freeList[word] &= ~ released[word] ;
+      freeListDirty[( word << 6 ) / ( blockSize * 8 )] = true ;
+      bitmapsDirty = true ;
+    }
+    freeCountsChanged = true ;
+  }
+
+  /**
+   * Mark free the blocks freed by freeBlocks() since the last sync.
+   * The block cache is written and forced first, so that the index
+   * nodes which referred to the blocks are on disk before the blocks
+   * can be reused.  No index node is written, and no sync is waited 
+   * for, so this may be called while holding the lock of an index 
+   * node.  This is a convenience method.
+   * @exception java.io.IOException if any exception occurs during an
+   * operation on the underlying "file system" file.
+   */
+  private void releaseUnreferencedBlocks() throws IOException
+  {
+    long[] released ;
+    synchronized( allocationLock )
+    {
+      if( unreferencedBlockCount == 0 )
+        return ;
+      released = unreferencedBlocks ;
+      releasingBlockCount += unreferencedBlockCount ;
+      unreferencedBlocks = new long[released.length] ;
+      unreferencedBlockCount = 0 ;
+    }
+    if( blockCache != null )
+      blockCache.flush() ;
+    device.force() ;
+    synchronized( allocationLock )
+    {
+      releaseFreedBlocks( released ) ;
+    }
+  }
+
+  /**
+   * Get the number of data blocks which are free, including those
+   * which have been freed since the last sync.  The count is kept up
+   * to date as blocks are allocated and freed, so this doesn't scan
+   * the free list.
+   * @return the number of free data blocks
+   */
+  public int getFreeBlockCount()
+  {
+    synchronized( allocationLock )
+    {
+      return freeBlockCount + getPendingBlockCount() ;
+    }
+  }
+
+  /**
+   * Get the number of data blocks which have been freed but can't be
+   * allocated yet, because they are waiting for the index nodes 
+   * which referred to them to be written.  They are included in the
+   * count of free blocks.
+   * @return the number of data blocks waiting to be released
+   */
+  public int getPendingBlockCount()
+  {
+    synchronized( allocationLock )
+    {
+      return freedBlockCount + unreferencedBlockCount + 
+        releasingBlockCount ;
+    }
+  }
+
+  /**
+   * Allocate a data block from the list of free blocks.
+   * @return the data block number which was allocated; -1 if no blocks 
+   * are available
+   * @exception java.io.IOException if any exception occurs during an
+   * operation on the underlying "file system" file.
+   */
+  public int allocateBlock()
+    throws IOException
+  {
+    int[] blocks = new int[1] ;
+    if( allocateBlocks( NOT_A_BLOCK , 1 , blocks ) < 0 )
+      return -1 ;
+    return blocks[0] ;
+  }
+
+  /**
+   * Allocate several data blocks at once, as a contiguous run if
+   * possible.  The run starts at the goal block if it is free; 
+   * otherwise at the first place after the goal where a run of the 
+   * requested length (up to 64 blocks) is free; otherwise at the
+   * first free block after the goal.  If the run ends before enough
+   * blocks are allocated, further runs are allocated in the same way.
+   * @param goal the data block number at which the run should 
+   * preferably start, usually the one after the last block of the 
+   * file; NOT_A_BLOCK if there is no preference
+   * @param count the number of blocks wanted
+   * @param blocks receives the data block numbers which were 
+   * allocated, in order
+   * @return the number of blocks allocated, which is less than count
+   * only if the file system is full; -1 if no blocks are available
+   * @exception java.io.IOException if any exception occurs during an
+   * operation on the underlying "file system" file.
+   */
+  public int allocateBlocks( int goal , int count , int[] blocks )
+    throws IOException
+  {
+    int allocated ;
+    boolean waiting ;
+    synchronized( allocationLock )
+    {
+      allocated = takeFreeBlocks( goal , count , blocks ) ;
+      waiting = unreferencedBlockCount > 0 ;
+    }
+
+    // if blocks freed by truncated files are waiting to be released,
+    // write the block cache so that we can use them.  This doesn't
+    // sync, which would write every dirty index node while the caller
+    // may be holding the lock of one.
+    if( allocated == 0 && waiting )
+    {
+      releaseUnreferencedBlocks() ;
+      synchronized( allocationLock )
+      {
+        allocated = takeFreeBlocks( goal , count , blocks ) ;
+      }
+    }
+    if( allocated == 0 )
+    {
+      Kernel.setErrno( Kernel.ENOSPC ) ;
+      return -1 ;
+    }
+    return allocated ;
+  }
+
+  /**
+   * Mark runs of free data blocks allocated in the free list, as 
+   * described for allocateBlocks.  The caller must hold the 
+   * allocation lock.  This is a convenience method.
+   * @param goal the data block number at which the run should 
+   * preferably start; NOT_A_BLOCK if there is no preference
+   * @param count the number of blocks wanted
+   * @param blocks receives the data block numbers which were 
+   * allocated, in order
+   * @return the number of blocks allocated; 0 if there are no free 
+   * blocks
+   */
+  private int takeFreeBlocks( int goal , int count , int[] blocks )
+  {
+    int dataBlockCount = getDataBlockCount() ;
+    int allocated = 0 ;
+    int next = goal ;
+    while( allocated < count )
+    {
+      int dataBlockNumber = findFreeRun( next , count - allocated ) ;
+      if( dataBlockNumber < 0 )
+        break ;
+      // take as much of the run as we need
+      while( allocated < count && dataBlockNumber < dataBlockCount &&
+        ( freeList[dataBlockNumber >>> 6] & ( 1L << dataBlockNumber ) ) == 0 )
+      {
+        freeList[dataBlockNumber >>> 6] |= 1L << dataBlockNumber ;
+        freeListDirty[dataBlockNumber / ( blockSize * 8 )] = true ;
+        bitmapsDirty = true ;
+        blocks[allocated] = dataBlockNumber ;
+        allocated ++ ;
+        dataBlockNumber ++ ;
+      }
+      next = dataBlockNumber ;
+    }
+    if( allocated > 0 )
+    {
+      freeBlockCount -= allocated ;
+      freeCountsChanged = true ;
+      currentFreeListWord = blocks[allocated - 1] >>> 6 ;
+    }
+    return allocated ;
+  }
+
+  /**
+   * Find the start of a run of free data blocks.  This is a 
+   * convenience method.
+   * @param goal the data block number at which the run should 
+   * preferably start; NOT_A_BLOCK if there is no preference
+   * @param count the length of run wanted; only runs within a single
+   * word of the free list (up to 64 blocks) are looked for
+   * @return the first data block of the run, or the first free data
+   * block after the goal if there is no run of that length; 
+   * -1 if there are no free blocks
+   */
+  private int findFreeRun( int goal , int count )
+  {
+    int words = freeList.length ;
+    if( goal < 0 || goal >= getDataBlockCount() )
+      goal = currentFreeListWord << 6 ;
+    else if( ( freeList[goal >>> 6] & ( 1L << goal ) ) == 0 )
+      return goal ;
+    int length = Math.min( count , 64 ) ;
+
+    // look for a word with a long enough run of clear bits
+    int word = goal >>> 6 ;
+    for( int i = 0 ; i < words ; i ++ )
+    {
+      long starts = runStarts( ~ freeList[word] , length ) ;
+      if( starts != 0 )
+        return ( word << 6 ) + Long.numberOfTrailingZeros( starts ) ;
+      word ++ ;
+      if( word == words )
+        word = 0 ;
+    }
+
+    // settle for any free block
+    word = goal >>> 6 ;
+    for( int i = 0 ; i < words ; i ++ )
+    {
+      if( freeList[word] != -1L )
+        return ( word << 6 ) + 
+          Long.numberOfTrailingZeros( ~ freeList[word] ) ;
+      word ++ ;
+      if( word == words )
+        word = 0 ;
+    }
+    return -1 ;
+  }
+
+  /**
+   * Find the runs of set bits of a given length in a word.  This is a
+   * convenience method.
+   * @param bits the word
+   * @param length the length of run, from 1 to 64
+   * @return a word with bit n set if bits n through n + length - 1 of
+   * the given word are all set
+   */
+  private static long runStarts( long bits , int length )
+  {
+    // after each step, bit n is set if the run of the current length
+    // starting at bit n is all set; each step at most doubles it
+    int current = 1 ;
+    while( current < length )
+    {
+      int shift = Math.min( current , length - current ) ;
+      bits &= bits >>> shift ;
+      current += shift ;
+    }
+    return bits ;
+  }
+
+  /**
+   * Read the free list bitmap into memory.  This is a convenience 
+   * method.
+   * @exception java.io.IOException if any exception occurs during an
+   * operation on the underlying "file system" file.
+   */
+  private void loadFreeList() throws IOException
+  {
+    freeListDirty = new boolean[getFreeListBlockCount()] ;
+    freeList = readBitmap( freeListBlockOffset , freeListDirty.length , 
+      getDataBlockCount() ) ;
+    freedBlocks = new long[freeList.length] ;
+    freedBlockCount = 0 ;
+    unreferencedBlocks = new long[freeList.length] ;
+    unreferencedBlockCount = 0 ;
+    releasingBlockCount = 0 ;
+
+    // count the free blocks, unless the superblock has the count
+    if( ( superBlock.getFlags() & SuperBlock.FLAG_FREE_COUNTS_VALID ) != 0 )
+      freeBlockCount = superBlock.getFreeBlockCount() ;
+    else
+    {
+      freeBlockCount = 0 ;
+      for( int i = 0 ; i < freeList.length ; i ++ )
+        freeBlockCount += Long.bitCount( ~ freeList[i] ) ;
+    }
+  }
+
+  /**
+   * Write the free list and inode bitmap blocks which have changed 
+   * since they were last written.  This is done before any metadata
+   * block is written to the device, by write() or by the block cache,
+   * so that nothing on disk refers to a block or index node which is
+   * marked free there.  This is a convenience method.
+   * @exception java.io.IOException if any exception occurs during an
+   * operation on the underlying "file system" file.
+   */
+  private void writeBitmaps() throws IOException
+  {
+    synchronized( allocationLock )
+    {
+      if( ! bitmapsDirty )
+        return ;
+
+      // the free counts in the superblock won't agree with the bitmaps
+      // once they are written, so say so first
+      if( countsValidOnDisk )
+        writeSuperBlock( false , 0 , 0 ) ;
+      flushFreeList() ;
+      flushIndexNodeMap() ;
+      bitmapsDirty = false ;
+    }
+  }
+
+  /**
+   * Write the free list blocks which have changed since they were
+   * last written.
+   * @exception java.io.IOException if any exception occurs during an
+   * operation on the underlying "file system" file.
+   */
+  private void flushFreeList() throws IOException
+  {
+    writeBitmap( freeList , freeListDirty , freeListBlockOffset , 
+      getDataBlockCount() ) ;
+  }
+
+  /**
+   * Get the number of blocks in the free list region, which ends 
+   * where the inode bitmap or, if there is none, the inodes begin.
+   * @return the number of free list blocks
+   */
+  private int getFreeListBlockCount()
+  {
+    if( inodeBitmapBlockOffset != 0 )
+      return inodeBitmapBlockOffset - freeListBlockOffset ;
+    return inodeBlockOffset - freeListBlockOffset ;
+  }
+
+  /**
+   * Read an on-disk bitmap into memory.  Bit n % 64 of word n / 64 of
+   * the result is bit n % 8 of byte n / 8 of the bitmap.  Bits past the end of the bitmap are set, so that they look 
+   * allocated.  This is a convenience method.
+   * @param offset the absolute block number of the first bitmap block
+   * @param blocks the number of bitmap blocks
+   * @param bits the number of bits in use
+   * @return the bitmap
+   * @exception java.io.IOException if any exception occurs during an
+   * operation on the underlying "file system" file.
+   */
+  private long[] readBitmap( int offset , int blocks , int bits )
+    throws IOException
+  {
+    long[] bitmap = new long[( bits + 63 ) >>> 6] ;
+    BitBlock bitBlock = new BitBlock( blockSize ) ;
+    for( int i = 0 ; i < blocks ; i ++ )
+    {
+      device.read( bitBlock.bytes , (long)( offset + i ) * blockSize ) ;
+      for( int j = 0 ; j < blockSize ; j ++ )
+      {
+        long byteNumber = (long)i * blockSize + j ;
+        if( byteNumber * 8 >= bits )
+          break ;
+        bitmap[(int)( byteNumber >>> 3 )] |= 
+          ( bitBlock.bytes[j] & 0xffL ) << ( ( byteNumber & 7 ) * 8 ) ;
+      }
+    }
+    if( ( bits & 63 ) != 0 )
+      bitmap[bitmap.length - 1] |= -1L << bits ;
+    return bitmap ;
+  }
+
+  /**
+   * Write the blocks of an in-memory bitmap which have changed since
+   * they were last written.  Bits past the end of the bitmap are 
+   * written as zero.  Bitmap blocks are read and written straight to
+   * the device, never through the block cache, so that the cache can
+   * write them before a metadata block which it is writing back.
+   * This is a convenience method.
+   * @param bitmap the bitmap
+   * @param dirty true for each block which has changed; reset to false
+   * as the blocks are written
+   * @param offset the absolute block number of the first bitmap block
+   * @param bits the number of bits in use
+   * @exception java.io.IOException if any exception occurs during an
+   * operation on the underlying "file system" file.
+   */
+  private void writeBitmap( long[] bitmap , boolean[] dirty , int offset ,
+    int bits ) throws IOException
+  {
+    BitBlock bitBlock = new BitBlock( blockSize ) ;
+    for( int i = 0 ; i < dirty.length ; i ++ )
+    {
+      if( ! dirty[i] )
+        continue ;
+      for( int j = 0 ; j < blockSize ; j ++ )
+      {
+        long byteNumber = (long)i * blockSize + j ;
+        long firstBit = byteNumber * 8 ;
+        int value = 0 ;
+        if( firstBit < bits )
+        {
+          value = (int)( bitmap[(int)( byteNumber >>> 3 )] >>> 
+            ( ( byteNumber & 7 ) * 8 ) ) & 0xff ;
+          if( firstBit + 8 > bits )
+            value &= ( 1 << ( bits - firstBit ) ) - 1 ;
+        }
+        bitBlock.bytes[j] = (byte)value ;
+      }
+      device.write( bitBlock.bytes , (long)( offset + i ) * blockSize ) ;
+      dirty[i] = false ;
+      bitmapWriteCount ++ ;
+    }
+  }
+
+  /**
+   * The inode bitmap, held in memory for the life of the file system.
+   * Bit n of word w is set if index node 64 * w + n is in use.  If the
+   * file system has no inode bitmap on disk, this is built when the 
+   * file system is opened from the link counts of the index nodes.
+   */
+  private long[] indexNodeMap = null ;
+
+  /**
+   * True for each inode bitmap block which has changed in memory 
+   * since it was last written; null if there is no inode bitmap on
+   * disk.
+   */
+  private boolean[] indexNodeMapDirty = null ;
+
+  /**
+   * The number of index nodes which are not in use.
+   */
+  private int freeIndexNodeCount = 0 ;
+
+  /**
+   * The word of the inode bitmap at which the next search for a free
+   * index node will start.
+   */
+  private int currentIndexNodeWord = 0 ;
+
+  /**
+   * A lock for each index node block, held while an index node in
+   * the block is read or written, so that writing one index node 
+   * doesn't lose a change made at the same time to another in the 
+   * same block.  Index nodes in different blocks are read and 
+   * written at the same time.
+   */
+  private Object[] indexNodeBlockLocks = null ;
+
+  /**
+   * The buffer each thread uses for reading and writing index node 
+   * blocks.
+   */
+  private final ThreadLocal<byte[]> indexNodeBlockBytes = 
+    new ThreadLocal<byte[]>()
+    {
+      protected byte[] initialValue()
+      {
+        return new byte[blockSize] ;
+      }
+    } ;
+
+  /**
+   * Get the number of index nodes in the file system.
+   * @return the number of index nodes
+   */
+  public int getIndexNodeCount()
+  {
+    return indexNodeCount ;
+  }
+
+  /**
+   * Get the number of index nodes which are not in use.  The count is
+   * kept up to date as index nodes are allocated and freed, so this 
+   * doesn't scan the inode bitmap.
+   * @return the number of free index nodes
+   */
+  public int getFreeIndexNodeCount()
+  {
+    synchronized( allocationLock )
+    {
+      return freeIndexNodeCount ;
+    }
+  }
+
+  /**
+   * Allocate an index node for the file system.
+   * @return the inode number for the next available index node; 
+   * -1 if there are no index nodes available.
+   * @exception java.io.IOException if there is an exception during
+   * an operation on the underlying "file system" file.
+   */
+  public short allocateIndexNode() throws IOException
+  {
+    synchronized( allocationLock )
+    {
+      if( freeIndexNodeCount == 0 )
+      {
+        // ??? it seems like we should give a different error here
+        Kernel.setErrno( Kernel.ENOSPC ) ;
+        return -1 ; 
+      }
+
+      // from our current position in the inode bitmap, scan a word
+      // at a time until we find a free index node.  The free count 
+      // tells us there is one.
+      int word = currentIndexNodeWord ;
+      while( indexNodeMap[word] == -1L )
+      {
+        word ++ ;
+        if( word == indexNodeMap.length )
+          word = 0 ;
+      }
+      currentIndexNodeWord = word ;
+      int indexNodeNumber = ( word << 6 ) + 
+        Long.numberOfTrailingZeros( ~ indexNodeMap[word] ) ;
+      setIndexNodeInUse( indexNodeNumber , true ) ;
+      // ??? should we update nlinks here?
+      return (short)indexNodeNumber ;
+    }
+  }
+
+  /**
+   * Mark an index node as no longer in use.  The caller is 
+   * responsible for freeing its blocks and setting its link count
+   * to zero.
+   * @param indexNodeNumber the index node number
+   */
+  public void freeIndexNode( short indexNodeNumber )
+  {
+    synchronized( allocationLock )
+    {
+      setIndexNodeInUse( indexNodeNumber , false ) ;
+    }
+  }
+
+  /**
+   * Set or clear the bit for an index node in the inode bitmap, 
+   * keeping the free count up to date.  This is a convenience method.
+   * @param indexNodeNumber the index node number
+   * @param inUse true if the index node is in use
+   */
+  private void setIndexNodeInUse( int indexNodeNumber , boolean inUse )
+  {
+    long bit = 1L << indexNodeNumber ;
+    long word = indexNodeMap[indexNodeNumber >>> 6] ;
+    if( ( ( word & bit ) != 0 ) == inUse )
+      return ;
+    indexNodeMap[indexNodeNumber >>> 6] = word ^ bit ;
+    freeIndexNodeCount += inUse ? -1 : 1 ;
+    freeCountsChanged = true ;
+    if( indexNodeMapDirty != null )
+    {
+      indexNodeMapDirty[indexNodeNumber / ( blockSize * 8 )] = true ;
+      bitmapsDirty = true ;
+    }
+  }
+
+  /**
+   * Read the inode bitmap into memory, or build it from the link 
+   * counts of the index nodes if the file system has none.  This is a
+   * convenience method.
+   * @exception java.io.IOException if any exception occurs during an
+   * operation on the underlying "file system" file.
+   */
+  private void loadIndexNodeMap() throws IOException
+  {
+    if( inodeBitmapBlockOffset != 0 )
+    {
+      indexNodeMapDirty = 
+        new boolean[inodeBlockOffset - inodeBitmapBlockOffset] ;
+      indexNodeMap = readBitmap( inodeBitmapBlockOffset , 
+        indexNodeMapDirty.length , indexNodeCount ) ;
+    }
+    else
+    {
+      indexNodeMap = new long[( indexNodeCount + 63 ) >>> 6] ;
+      if( ( indexNodeCount & 63 ) != 0 )
+        indexNodeMap[indexNodeMap.length - 1] |= -1L << indexNodeCount ;
+      IndexNode temp = new IndexNode() ;
+      for( int i = 0 ; i < indexNodeCount ; i ++ )
+      {
+        readIndexNode( temp , (short)i ) ;
+        if( temp.getNlink() != 0 )
+          indexNodeMap[i >>> 6] |= 1L << i ;
+      }
+    }
+
+    // count the free index nodes, unless the superblock has the count
+    if( inodeBitmapBlockOffset != 0 && ( superBlock.getFlags() & 
+      SuperBlock.FLAG_FREE_COUNTS_VALID ) != 0 )
+      freeIndexNodeCount = superBlock.getFreeIndexNodeCount() ;
+    else
+    {
+      freeIndexNodeCount = 0 ;
+      for( int i = 0 ; i < indexNodeMap.length ; i ++ )
+        freeIndexNodeCount += Long.bitCount( ~ indexNodeMap[i] ) ;
+    }
+  }
+
+  /**
+   * Write the inode bitmap blocks which have changed since they were
+   * last written.
+   * @exception java.io.IOException if any exception occurs during an
+   * operation on the underlying "file system" file.
+   */
+  private void flushIndexNodeMap() throws IOException
+  {
+    if( indexNodeMapDirty != null )
+      writeBitmap( indexNodeMap , indexNodeMapDirty , 
+        inodeBitmapBlockOffset , indexNodeCount ) ;
+  }
+
+  /**
+   * Get the cache of directory lookups for this file system.
+   * @return the directory entry cache
+   */
+  public DirectoryEntryCache getDirectoryEntryCache()
+  {
+    return directoryEntryCache ;
+  }
+
+  public int getDirectoryIndexThreshold()
+  {
+    return directoryIndexThreshold ;
+  }
+
+  public void setDirectoryIndexThreshold( int newDirectoryIndexThreshold )
+  {
+    directoryIndexThreshold = newDirectoryIndexThreshold ;
+  }
+
+  /**
+   * Get the shared instance of an index node from the index node 
+   * cache and add a reference to it.  The reference must be given 
+   * back with releaseIndexNode().
+   * @param indexNodeNumber the index node number
+   * @return the index node
+   * @exception java.io.IOException if any exception occurs in an 
+   * underlying operation on the "file system" file.
+   */
+  public IndexNode getIndexNode( short indexNodeNumber ) throws IOException
+  {
+    return indexNodeCache.get( indexNodeNumber ) ;
+  }
+
+  /**
+   * Give back a reference to an index node obtained from 
+   * getIndexNode().
+   * @param indexNode the index node
+   */
+  public void releaseIndexNode( IndexNode indexNode )
+  {
+    indexNodeCache.release( indexNode ) ;
+  }
+
+  /**
+   * Reads an index node at the index node location specified.
+   * This bypasses the index node cache; most callers should use 
+   * getIndexNode() instead so that they share the cached instance.
+   * @param indexNode the index node
+   * @param indexNodeNumber the location
+   * @execption java.io.IOException if any exception occurs in an 
+   * underlying operation on the "file system" file.
+   */
+  public void readIndexNode( IndexNode indexNode , short indexNodeNumber ) 
+    throws IOException
+  {
+    int block = getIndexNodeBlock( indexNodeNumber ) ;
+    byte[] bytes = indexNodeBlockBytes.get() ;
+    synchronized( indexNodeBlockLocks[block] )
+    {
+      read( bytes , inodeBlockOffset + block ) ;
+      indexNode.read( bytes , 
+        ( indexNodeNumber * IndexNode.INDEX_NODE_SIZE ) % 
+        blockSize , formatVersion ) ;
+    }
+  }
+
+  /**
+   * Writes an index node at the index node location specified.  The
+   * read lock of the index node is held while it is written, so that
+   * it isn't written while another thread is part way through 
+   * changing it.  The calling thread may already hold the lock, for
+   * reading or writing, but must not hold any other lock which a 
+   * thread changing the index node might wait for.
+   * @param indexNode the index node
+   * @param indexNodeNumber the location
+   * @execption java.io.IOException if any exception occurs in an 
+   * underlying operation on the "file system" file.
+   */
+  public void writeIndexNode( IndexNode indexNode , short indexNodeNumber )
+    throws IOException
+  {
+    int block = getIndexNodeBlock( indexNodeNumber ) ;
+    byte[] bytes = indexNodeBlockBytes.get() ;
+    ReentrantReadWriteLock.ReadLock lock = indexNode.getLock().readLock() ;
+    lock.lock() ;
+    try
+    {
+      synchronized( indexNodeBlockLocks[block] )
+      {
+        read( bytes , inodeBlockOffset + block ) ;
+        indexNode.write( bytes , 
+          ( indexNodeNumber * IndexNode.INDEX_NODE_SIZE ) % 
+          blockSize , formatVersion ) ;
+        indexNode.setDirty( false ) ;
+
+        write( bytes , inodeBlockOffset + block , true ) ;
+      }
+    }
+    finally
+    {
+      lock.unlock() ;
+    }
+  }
+
+  /**
+   * Get the index node block which holds the specified index node,
+   * counting from the first index node block.
+   * This is a convenience method.
+   * @param indexNodeNumber the index node number
+   * @return the index node block number
+   */
+  private int getIndexNodeBlock( short indexNodeNumber )
+  {
+    return indexNodeNumber / ( blockSize / IndexNode.INDEX_NODE_SIZE ) ;
+  }
 }
@@ -40,8 +40,15 @@
  *
  */
 
+import java.util.concurrent.locks.ReentrantReadWriteLock ;
+
 /**
  * An index node for a simulated file system.
+ * <p>
+ * An index node in the IndexNodeCache has a reader/writer lock which
+ * guards the contents of its file or directory.  Any number of 
+ * threads may read the file at once while holding the read lock, but
+ * a thread which changes it holds the write lock.
  * @author Ray Ontko
  */
 public class IndexNode
@@ -58,11 +65,12 @@ public class IndexNode
   public static final int MAX_DIRECT_BLOCKS = 10 ;
 
   /**
-   * Maximum number of blocks in a file.  If indirect,
-   * doubleIndirect, or tripleIndirect blocks are implemented,
-   * this number will need to be increased.
+   * Number of levels of indirect blocks: the indirectBlock, 
+   * doubleIndirectBlock and tripleIndirectBlock.  The maximum number 
+   * of blocks in a file depends on how many block addresses fit in a
+   * block; see FileSystem.getMaxFileBlocks().
    */
-  public static final int MAX_FILE_BLOCKS = MAX_DIRECT_BLOCKS ;
+  public static final int MAX_INDIRECT_LEVELS = 3 ;
 
   /**
    * Mode for this index node.  This includes file type and file protection
@@ -93,10 +101,17 @@ public class IndexNode
    */
   private int size = 0 ;
 
+  /**
+   * The value stored on disk for NOT_A_BLOCK in the 
+   * FORMAT_3_BYTE_ADDRESSES format.
+   */
+  private static final int NOT_A_3_BYTE_BLOCK = 0x00FFFFFF ;
+
   /**
    * Array of direct blocks containing the block addresses for the 
    * first MAX_DIRECT_BLOCKS blocks of the file.  Note that each
-   * element in the array is stored as a 3-byte number on disk.
+   * element in the array is stored as a 3-byte number on disk in 
+   * the original format, and as a 4-byte number in later formats.
    */
   private int directBlocks[] = 
     { FileSystem.NOT_A_BLOCK 
@@ -110,24 +125,34 @@ public class IndexNode
     , FileSystem.NOT_A_BLOCK 
     , FileSystem.NOT_A_BLOCK } ;
 
-  /*
-   * Not yet implemented.
-   *
+  /**
+   * The address of a block containing the block addresses for the
+   * blocks of the file which follow the direct blocks.
    */
   private int indirectBlock = FileSystem.NOT_A_BLOCK ;
 
-  /*
-   * Not yet implemented.
-   *
+  /**
+   * The address of a block containing the addresses of indirect
+   * blocks for the blocks of the file which follow those mapped by
+   * the indirectBlock.
    */
   private int doubleIndirectBlock = FileSystem.NOT_A_BLOCK ;
 
-  /*
-   * Not yet implemented.
-   *
+  /**
+   * The address of a block containing the addresses of double 
+   * indirect blocks for the blocks of the file which follow those 
+   * mapped by the doubleIndirectBlock.
    */
   private int tripleIndirectBlock = FileSystem.NOT_A_BLOCK ;
 
+  /**
+   * The root of the extent tree which maps the blocks of the file in
+   * the FORMAT_EXTENTS format, in which the direct and indirect block
+   * addresses are not used.
+   */
+  private ExtentNode extents = 
+    new ExtentNode( ExtentNode.INDEX_NODE_EXTENTS ) ;
+
   /*
    * Not yet implemented.
    * The date and time at which this file was last accessed.  
@@ -152,6 +177,39 @@ public class IndexNode
    */
   private int ctime = 0 ;
 
+  /**
+   * The number of this index node in its file system if it is held 
+   * in the file system's IndexNodeCache; -1 otherwise.
+   */
+  private short indexNodeNumber = -1 ;
+
+  /**
+   * The number of references to this index node which have been 
+   * handed out by the IndexNodeCache and not yet released.
+   */
+  private int referenceCount = 0 ;
+
+  /**
+   * True if this index node has been changed in memory since it 
+   * was last written to the file system.
+   */
+  private boolean dirty = false ;
+
+  /**
+   * A count of the changes made to the data blocks of the file, or
+   * to the way they are mapped, since this index node was read; a
+   * file descriptor uses it to tell whether what it has cached may 
+   * have been changed through another file descriptor.
+   */
+  private int modificationCount = 0 ;
+
+  /**
+   * The lock which guards the contents of the file or directory.  It
+   * belongs to this object, and so is not copied by copy().
+   */
+  private final ReentrantReadWriteLock lock = 
+    new ReentrantReadWriteLock() ;
+
   /**
    * Creates an index node.
    */
@@ -266,6 +324,103 @@ public class IndexNode
       throw new Exception( "invalid block address " + block ) ;
   }
 
+  /**
+   * Gets the address of the indirect block at the given level.
+   * @param level 1 for the indirectBlock, 2 for the 
+   * doubleIndirectBlock, 3 for the tripleIndirectBlock
+   * @return the address of the block; FileSystem.NOT_A_BLOCK if none
+   */
+  public int getIndirectBlock( int level )
+  {
+    if( level == 1 )
+      return indirectBlock ;
+    else if( level == 2 )
+      return doubleIndirectBlock ;
+    else
+      return tripleIndirectBlock ;
+  }
+
+  /**
+   * Sets the address of the indirect block at the given level.
+   * @param level 1 for the indirectBlock, 2 for the 
+   * doubleIndirectBlock, 3 for the tripleIndirectBlock
+   * @param address the address of the block
+   */
+  public void setIndirectBlock( int level , int address )
+  {
+    if( level == 1 )
+      indirectBlock = address ;
+    else if( level == 2 )
+      doubleIndirectBlock = address ;
+    else
+      tripleIndirectBlock = address ;
+  }
+
+  /**
+   * Gets the root of the extent tree for this IndexNode.  This is 
+   * only used in the FORMAT_EXTENTS format.
+   * @return the root node, which is updated in place
+   */
+  public ExtentNode getExtents()
+  {
+    return extents ;
+  }
+
+  public void setIndexNodeNumber( short newIndexNodeNumber )
+  {
+    indexNodeNumber = newIndexNodeNumber ;
+  }
+
+  /**
+   * Gets the number of this index node, if it came from the 
+   * IndexNodeCache.
+   * @return the index node number; -1 if not known
+   */
+  public short getIndexNodeNumber()
+  {
+    return indexNodeNumber ;
+  }
+
+  public void setReferenceCount( int newReferenceCount )
+  {
+    referenceCount = newReferenceCount ;
+  }
+
+  public int getReferenceCount()
+  {
+    return referenceCount ;
+  }
+
+  /**
+   * Marks this index node as changed (or not) since it was last 
+   * written to the file system.
+   * @param newDirty true if the index node needs to be written
+   */
+  public void setDirty( boolean newDirty )
+  {
+    dirty = newDirty ;
+  }
+
+  public boolean isDirty()
+  {
+    return dirty ;
+  }
+
+  public void setModificationCount( int newModificationCount )
+  {
+    modificationCount = newModificationCount ;
+  }
+
+  public int getModificationCount()
+  {
+    return modificationCount ;
+  }
+
+  public ReentrantReadWriteLock getLock()
+  {
+    return lock ;
+  }
+
   public void setAtime( int newAtime )
   {
     atime = newAtime ;
@@ -296,6 +451,18 @@ public class IndexNode
     return ctime ;
   }
 
+  /**
+   * Writes the contents of an index node to a byte array in the
+   * original (FORMAT_3_BYTE_ADDRESSES) format.
+   * @param buffer the buffer to which bytes should be written
+   * @param offset the offset from the beginning of the buffer
+   * at which bytes should be written
+   */
+  public void write( byte[] buffer , int offset )
+  {
+    write( buffer , offset , SuperBlock.FORMAT_3_BYTE_ADDRESSES ) ;
+  }
+
   /**
    * Writes the contents of an index node to a byte array.
    * This is used to copy the bytes which correspond to the 
@@ -304,8 +471,9 @@ public class IndexNode
    * @param buffer the buffer to which bytes should be written
    * @param offset the offset from the beginning of the buffer
    * at which bytes should be written
+   * @param formatVersion the on-disk format of the file system
    */
-  public void write( byte[] buffer , int offset )
+  public void write( byte[] buffer , int offset , int formatVersion )
   {
     // write the mode info
     buffer[offset] = (byte)( mode >>> 8 ) ;
@@ -329,17 +497,46 @@ public class IndexNode
     buffer[offset+8+2] = (byte)( size >>> 8 ) ;
     buffer[offset+8+3] = (byte)( size ) ;
 
-    // write the directBlocks info 3 bytes at a time
-    for( int i = 0 ; i < MAX_DIRECT_BLOCKS ; i ++ )
+    // in the extent format, the rest of the index node is the root
+    // of the extent tree
+    if( formatVersion == SuperBlock.FORMAT_EXTENTS )
     {
-      buffer[offset+12+3*i]   = (byte)( directBlocks[i] >>> 16 ) ;
-      buffer[offset+12+3*i+1] = (byte)( directBlocks[i] >>> 8 ) ;
-      buffer[offset+12+3*i+2] = (byte)( directBlocks[i] ) ;
+      extents.write( buffer , offset + 12 ) ;
+      return ;
     }
 
-    // leave room for indirectBlock, doubleIndirectBlock, tripleIndirectBlock
+    // write the directBlocks info 3 or 4 bytes at a time, 
+    // depending on the format, followed by the indirectBlock, 
+    // doubleIndirectBlock and tripleIndirectBlock
+    int addressSize = getBlockAddressSize( formatVersion ) ;
+    int addressOffset = offset + 12 ;
+    for( int i = 0 ; i < MAX_DIRECT_BLOCKS ; i ++ )
+    {
+      writeBlockAddress( buffer , addressOffset , directBlocks[i] , 
+        formatVersion ) ;
+      addressOffset += addressSize ;
+    }
+    writeBlockAddress( buffer , addressOffset , indirectBlock , 
+      formatVersion ) ;
+    writeBlockAddress( buffer , addressOffset + addressSize , 
+      doubleIndirectBlock , formatVersion ) ;
+    writeBlockAddress( buffer , addressOffset + 2 * addressSize , 
+      tripleIndirectBlock , formatVersion ) ;
+
+    // leave room for atime, mtime, ctime (in the original format only;
+    // there is no room left in later formats)
+  }
 
-    // leave room for atime, mtime, ctime
+  /**
+   * Reads the contents of an index node from a byte array in the
+   * original (FORMAT_3_BYTE_ADDRESSES) format.
+   * @param buffer the buffer from which bytes should be read
+   * @param offset the offset from the beginning of the buffer
+   * at which bytes should be read
+   */
+  public void read( byte[] buffer , int offset )
+  {
+    read( buffer , offset , SuperBlock.FORMAT_3_BYTE_ADDRESSES ) ;
   }
 
   /**
@@ -350,8 +547,9 @@ public class IndexNode
    * @param buffer the buffer from which bytes should be read
    * @param offset the offset from the beginning of the buffer
    * at which bytes should be read
+   * @param formatVersion the on-disk format of the file system
    */
-  public void read( byte[] buffer , int offset )
+  public void read( byte[] buffer , int offset , int formatVersion )
   {
     int b3 ;
     int b2 ;
@@ -385,18 +583,116 @@ public class IndexNode
     b0 = buffer[offset+8+3] & 0xff ;
     size = b3 << 24 | b2 << 16 | b1 << 8 | b0 ; 
 
-    // read the block address info 3 bytes at a time
+    // in the extent format, the rest of the index node is the root
+    // of the extent tree
+    if( formatVersion == SuperBlock.FORMAT_EXTENTS )
+    {
+      extents.read( buffer , offset + 12 ) ;
+      return ;
+    }
+
+    // read the block address info 3 or 4 bytes at a time,
+    // depending on the format
+    int addressSize = getBlockAddressSize( formatVersion ) ;
+    int addressOffset = offset + 12 ;
     for( int i = 0 ; i < MAX_DIRECT_BLOCKS ; i ++ )
     {
-      b2 = buffer[offset+12+i*3] & 0xff ;
-      b1 = buffer[offset+12+i*3+1] & 0xff ;
-      b0 = buffer[offset+12+i*3+2] & 0xff ;
-      directBlocks[i] = b2 << 16 | b1 << 8 | b0 ; 
+      directBlocks[i] = readBlockAddress( buffer , addressOffset , 
+        formatVersion ) ;
+      addressOffset += addressSize ;
+    }
+
+    // read the indirectBlock, doubleIndirectBlock and 
+    // tripleIndirectBlock.  Images written before these were stored 
+    // have zeros here.  Data block zero always holds the root 
+    // directory, so it can never be an indirect block, and we treat
+    // it as NOT_A_BLOCK.
+    indirectBlock = readIndirectBlockAddress( buffer , addressOffset , 
+      formatVersion ) ;
+    doubleIndirectBlock = readIndirectBlockAddress( buffer , 
+      addressOffset + addressSize , formatVersion ) ;
+    tripleIndirectBlock = readIndirectBlockAddress( buffer , 
+      addressOffset + 2 * addressSize , formatVersion ) ;
+
+    // leave room for atime, mtime, ctime (in the original format only)
+  }
+
+  /**
+   * Get the number of bytes used to store a block address on disk.
+   * @param formatVersion the on-disk format of the file system
+   * @return 3 for the original format; 4 for later formats
+   */
+  public static int getBlockAddressSize( int formatVersion )
+  {
+    if( formatVersion == SuperBlock.FORMAT_3_BYTE_ADDRESSES )
+      return 3 ;
+    else
+      return 4 ;
+  }
+
+  /**
+   * Writes a block address to a byte array in the on-disk format.
+   * This is used for the addresses in index nodes and in indirect 
+   * blocks.
+   * @param buffer the buffer to which bytes should be written
+   * @param offset the offset in the buffer at which to write
+   * @param address the block address; may be FileSystem.NOT_A_BLOCK
+   * @param formatVersion the on-disk format of the file system
+   */
+  public static void writeBlockAddress( byte[] buffer , int offset , 
+    int address , int formatVersion )
+  {
+    if( formatVersion == SuperBlock.FORMAT_3_BYTE_ADDRESSES )
+    {
+      if( address == FileSystem.NOT_A_BLOCK )
+        address = NOT_A_3_BYTE_BLOCK ;
     }
+    else
+    {
+      buffer[offset] = (byte)( address >>> 24 ) ;
+      offset ++ ;
+    }
+    buffer[offset]   = (byte)( address >>> 16 ) ;
+    buffer[offset+1] = (byte)( address >>> 8 ) ;
+    buffer[offset+2] = (byte)( address ) ;
+  }
 
-    // leave room for indirectBlock, doubleIndirectBlock, tripleIndirectBlock
+  /**
+   * Reads a block address from a byte array in the on-disk format.
+   * @param buffer the buffer from which bytes should be read
+   * @param offset the offset in the buffer at which to read
+   * @param formatVersion the on-disk format of the file system
+   * @return the block address; FileSystem.NOT_A_BLOCK if none
+   */
+  public static int readBlockAddress( byte[] buffer , int offset , 
+    int formatVersion )
+  {
+    int address = 0 ;
+    if( formatVersion != SuperBlock.FORMAT_3_BYTE_ADDRESSES )
+    {
+      address = ( buffer[offset] & 0xff ) << 24 ;
+      offset ++ ;
+    }
+    address |= ( buffer[offset] & 0xff ) << 16 | 
+      ( buffer[offset+1] & 0xff ) << 8 |
+      ( buffer[offset+2] & 0xff ) ;
+    if( formatVersion == SuperBlock.FORMAT_3_BYTE_ADDRESSES && 
+      address == NOT_A_3_BYTE_BLOCK )
+      address = FileSystem.NOT_A_BLOCK ;
+    return address ;
+  }
 
-    // leave room for atime, mtime, ctime
+  /**
+   * Reads one of the indirect block addresses of an index node,
+   * treating zero as NOT_A_BLOCK.  This is a convenience method.
+   */
+  private static int readIndirectBlockAddress( byte[] buffer , 
+    int offset , int formatVersion )
+  {
+    int address = readBlockAddress( buffer , offset , formatVersion ) ;
+    if( address == 0 )
+      return FileSystem.NOT_A_BLOCK ;
+    return address ;
   }
 
   /**
@@ -420,6 +716,11 @@ public class IndexNode
     return s.toString() ;
   }
 
+  /**
+   * Copies the contents of this index node to another.  The index
+   * node number, reference count and dirty flag are not copied.
+   * @param indexNode the index node to which to copy
+   */
   public void copy( IndexNode indexNode )
   {
     indexNode.mode = mode ;
@@ -432,6 +733,7 @@ public class IndexNode
     indexNode.indirectBlock = indirectBlock ;
     indexNode.doubleIndirectBlock = doubleIndirectBlock ;
     indexNode.tripleIndirectBlock = tripleIndirectBlock ;
+    extents.copy( indexNode.extents ) ;
     indexNode.atime = atime ;
     indexNode.mtime = mtime ;
     indexNode.ctime = ctime ;
@@ -0,0 +1,292 @@
+import java.io.IOException ;
+import java.util.ArrayList ;
+import java.util.HashSet ;
+import java.util.Iterator ;
+import java.util.LinkedHashMap ;
+import java.util.concurrent.locks.Lock ;
+
+/**
+ * A cache of the index nodes of a simulated file system which are 
+ * in use.
+ * <p>
+ * Each index node is held in memory at most once, so every open file
+ * descriptor and every path lookup on the same file sees the same 
+ * IndexNode instance, and changes made through one (such as a new
+ * size) are seen at once by the others.  Index nodes are handed out
+ * by get() with a reference count, which the holder must give back
+ * with release() when done.
+ * <p>
+ * The cache tries to hold no more than a given number of index 
+ * nodes.  When it holds more, the least recently used index nodes 
+ * which are not referenced are evicted, and written to the file 
+ * system first if they are dirty.  Index nodes which are referenced 
+ * are never evicted, so the cache may grow past its capacity while
+ * many are in use.
+ * <p>
+ * As in the block cache, the cache is only locked while index nodes
+ * are looked up, added or removed.  An index node which is not cached
+ * is added at once, marked as loading, and read after the lock is
+ * released; other threads which need it wait until it is loaded.  An
+ * evicted index node which is dirty stays cached, marked as being
+ * written, until it has been written, so that nobody reads the old 
+ * copy from the file system meanwhile.
+ */
+public class IndexNodeCache
+{
+  /**
+   * The file system whose index nodes are cached.
+   */
+  private FileSystem fileSystem = null ;
+
+  /**
+   * The number of index nodes the cache tries to stay within.
+   */
+  private int capacity = 0 ;
+
+  /**
+   * The cached index nodes by index node number, from least to most
+   * recently used.
+   */
+  private LinkedHashMap<Short,IndexNode> indexNodes = null ;
+
+  /**
+   * The numbers of the cached index nodes which are still being read
+   * from the file system.
+   */
+  private HashSet<Short> loading = new HashSet<Short>() ;
+
+  /**
+   * The numbers of the cached index nodes which have been chosen for
+   * eviction and are being written to the file system.
+   */
+  private HashSet<Short> writing = new HashSet<Short>() ;
+
+  /**
+   * Construct an index node cache for the given file system.
+   * @param newFileSystem the file system whose index nodes are cached
+   * @param newCapacity the number of index nodes the cache should 
+   * try to stay within
+   */
+  public IndexNodeCache( FileSystem newFileSystem , int newCapacity )
+  {
+    super() ;
+    fileSystem = newFileSystem ;
+    capacity = newCapacity ;
+    indexNodes = new LinkedHashMap<Short,IndexNode>( 16 , 0.75f , true ) ;
+  }
+
+  /**
+   * Get the shared instance of an index node, reading it from the
+   * file system if it is not already cached, and add a reference to
+   * it.
+   * @param indexNodeNumber the index node number
+   * @return the index node
+   * @exception java.io.IOException if an I/O error occurs while 
+   * reading the index node or writing back an evicted one
+   */
+  public IndexNode get( short indexNodeNumber ) throws IOException
+  {
+    IndexNode indexNode ;
+    boolean cached ;
+    synchronized( this )
+    {
+      // wait for the index node if another thread is reading it
+      while( loading.contains( indexNodeNumber ) )
+        waitForLoad() ;
+      indexNode = indexNodes.get( indexNodeNumber ) ;
+      cached = indexNode != null ;
+      if( ! cached )
+      {
+        // add an empty index node for others to wait for while we
+        // read it
+        indexNode = new IndexNode() ;
+        indexNode.setIndexNodeNumber( indexNodeNumber ) ;
+        indexNodes.put( indexNodeNumber , indexNode ) ;
+        loading.add( indexNodeNumber ) ;
+      }
+      indexNode.setReferenceCount( indexNode.getReferenceCount() + 1 ) ;
+    }
+
+    if( ! cached )
+      load( indexNode ) ;
+    evict() ;
+    return indexNode ;
+  }
+
+  /**
+   * Read an index node which has been added to the cache and marked
+   * as loading, and let those waiting for it go on.  If it can't be
+   * read, it is taken out of the cache again.  The caller must not 
+   * hold the lock on this cache.
+   * This is a convenience method.
+   * @param indexNode the index node
+   * @exception java.io.IOException if an I/O error occurs
+   */
+  private void load( IndexNode indexNode ) throws IOException
+  {
+    short indexNodeNumber = indexNode.getIndexNodeNumber() ;
+    try
+    {
+      fileSystem.readIndexNode( indexNode , indexNodeNumber ) ;
+    }
+    catch( IOException e )
+    {
+      synchronized( this )
+      {
+        indexNodes.remove( indexNodeNumber ) ;
+        loading.remove( indexNodeNumber ) ;
+        notifyAll() ;
+      }
+      throw e ;
+    }
+    synchronized( this )
+    {
+      loading.remove( indexNodeNumber ) ;
+      notifyAll() ;
+    }
+  }
+
+  /**
+   * Wait until some index node has finished loading.  The caller must
+   * hold the lock on this cache.
+   * This is a convenience method.
+   */
+  private void waitForLoad()
+  {
+    try
+    {
+      wait() ;
+    }
+    catch( InterruptedException e )
+    {
+      Thread.currentThread().interrupt() ;
+    }
+  }
+
+  /**
+   * Give back a reference obtained from get().  The index node stays
+   * cached until it is evicted.
+   * @param indexNode the index node
+   */
+  public synchronized void release( IndexNode indexNode )
+  {
+    if( indexNode.getReferenceCount() > 0 )
+      indexNode.setReferenceCount( indexNode.getReferenceCount() - 1 ) ;
+  }
+
+  /**
+   * Write every dirty cached index node to the file system.  Each is
+   * written under its own read lock, so the cache isn't locked while
+   * they are written; otherwise a thread changing an index node might
+   * wait for the cache while we wait for it.
+   * @exception java.io.IOException if an I/O error occurs
+   */
+  public void flush() throws IOException
+  {
+    ArrayList<IndexNode> dirty = new ArrayList<IndexNode>() ;
+    synchronized( this )
+    {
+      Iterator<IndexNode> i = indexNodes.values().iterator() ;
+      while( i.hasNext() )
+      {
+        IndexNode indexNode = i.next() ;
+        if( indexNode.isDirty() && 
+          ! loading.contains( indexNode.getIndexNodeNumber() ) )
+          dirty.add( indexNode ) ;
+      }
+    }
+    for( int i = 0 ; i < dirty.size() ; i ++ )
+    {
+      IndexNode indexNode = dirty.get( i ) ;
+      fileSystem.writeIndexNode( indexNode , 
+        indexNode.getIndexNodeNumber() ) ;
+    }
+  }
+
+  /**
+   * Evict least recently used, unreferenced index nodes until the 
+   * cache is within its capacity or none are left to evict.  Clean
+   * index nodes are simply dropped.  Dirty ones are written first, 
+   * after the lock on this cache has been released, and dropped 
+   * afterwards unless they have been referenced or changed meanwhile.
+   * A dirty index node is only written if its lock can be had at 
+   * once; if not, it is in use, even though it has no references, 
+   * and is left for later.
+   * This is a convenience method.
+   * @exception java.io.IOException if an I/O error occurs while 
+   * writing back a dirty index node
+   */
+  private void evict() throws IOException
+  {
+    ArrayList<IndexNode> dirty = new ArrayList<IndexNode>() ;
+    synchronized( this )
+    {
+      int excess = indexNodes.size() - writing.size() - capacity ;
+      Iterator<IndexNode> i = indexNodes.values().iterator() ;
+      while( excess > 0 && i.hasNext() )
+      {
+        IndexNode indexNode = i.next() ;
+        short indexNodeNumber = indexNode.getIndexNodeNumber() ;
+        if( indexNode.getReferenceCount() > 0 || 
+          writing.contains( indexNodeNumber ) )
+          continue ;
+        if( indexNode.isDirty() )
+        {
+          writing.add( indexNodeNumber ) ;
+          dirty.add( indexNode ) ;
+        }
+        else
+          i.remove() ;
+        excess -- ;
+      }
+    }
+
+    for( int i = 0 ; i < dirty.size() ; i ++ )
+    {
+      IndexNode indexNode = dirty.get( i ) ;
+      short indexNodeNumber = indexNode.getIndexNodeNumber() ;
+      boolean written = false ;
+      Lock lock = indexNode.getLock().readLock() ;
+      if( lock.tryLock() )
+      {
+        try
+        {
+          fileSystem.writeIndexNode( indexNode , indexNodeNumber ) ;
+          written = true ;
+        }
+        catch( IOException e )
+        {
+          giveUpWriting( dirty , i ) ;
+          throw e ;
+        }
+        finally
+        {
+          lock.unlock() ;
+        }
+      }
+      synchronized( this )
+      {
+        writing.remove( indexNodeNumber ) ;
+        if( written && indexNode.getReferenceCount() == 0 && 
+          ! indexNode.isDirty() )
+          indexNodes.remove( indexNodeNumber ) ;
+      }
+    }
+  }
+
+  /**
+   * Forget that the index nodes from a given one onwards in a list of
+   * those being evicted are being written, because writing one has 
+   * failed.  They stay cached.
+   * This is a convenience method.
+   * @param dirty the index nodes being evicted
+   * @param first the position in the list of the first to forget
+   */
+  private synchronized void giveUpWriting( ArrayList<IndexNode> dirty ,
+    int first )
+  {
+    for( int i = first ; i < dirty.size() ; i ++ )
+      writing.remove( dirty.get( i ).getIndexNodeNumber() ) ;
+  }
+
+}
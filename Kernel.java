@@ -8,6 +8,7 @@ import java.util.Properties ;
 import java.io.FileInputStream ;
 import java.io.IOException ;
 import java.io.FileNotFoundException ;
+import java.util.concurrent.locks.ReentrantReadWriteLock ;
 
 /*
  * $Log: Kernel.java,v $
@@ -46,6 +47,11 @@ public class Kernel
    */
   public static final int ENOENT = 2 ;
 
+  /**
+   * I/O error.
+   */
+  public static final int EIO = 5 ;
+
   /**
    * Bad file number.
    */
@@ -136,7 +142,7 @@ public class Kernel
   , "No such file or directory"
   , null
   , null
-  , null
+  , "I/O error"
   , null
   , null
   , null
@@ -175,6 +181,7 @@ public class Kernel
    */
   public static void perror( String s )
   {
+    ProcessContext process = getProcess() ;
     String message = null ;
     if ( ( process.errno > 0 ) && ( process.errno < sys_nerr ) )
       message = sys_errlist[process.errno] ;
@@ -195,6 +202,7 @@ public class Kernel
    */
   public static void setErrno( int newErrno )
   {
+    ProcessContext process = getProcess() ;
     if( process == null )
     {
       System.err.println( PROGRAM_NAME + 
@@ -215,6 +223,7 @@ public class Kernel
    */
   public static int getErrno()
   {
+    ProcessContext process = getProcess() ;
     if( process == null )
     {
       System.err.println( PROGRAM_NAME + 
@@ -361,25 +370,27 @@ public class Kernel
    * @param fd the file descriptor of the file to close
    * @return Zero if the file is closed; -1 if the file descriptor 
    * is invalid.
+   * @exception java.io.IOException if the file's index node has
+   * changed and can't be written
    */
-  public static int close(int fd)
+  public static int close(int fd) throws IOException
   {
+    ProcessContext process = getProcess() ;
     // check fd
     int status = check_fd( fd ) ;
     if( status < 0 )
       return status ;
 
     // remove the file descriptor from the kernel's list of open files
-    for( int i = 0 ; i < MAX_OPEN_FILES ; i ++ )
-      if( openFiles[i] == process.openFiles[fd] )
-      {
-        openFiles[i] = null ;
-        break ;
-      }
-   // ??? is it an error if we didn't find the open file?
+    FileDescriptor file = process.openFiles.get( fd ) ;
+    openFiles.remove( file.getKernelSlot() ) ;
+    file.setKernelSlot( -1 ) ;
+
+    // write the file's index node if it has changed, and give it back
+    file.close() ;
 
     // remove the file descriptor from the list.
-    process.openFiles[fd] = null ;
+    process.openFiles.remove( fd ) ;
     return 0 ;
   }
 
@@ -410,13 +421,56 @@ public class Kernel
   public static int creat( String pathname , short mode )
     throws Exception
   {
+    // find the directory in which the file is to be created
+    String fullPath = getFullPath( pathname ) ;
+    int end = fullPath.length() ;
+    while( end > 1 && fullPath.charAt( end - 1 ) == '/' )
+      end -- ;
+    IndexNode directory = findIndexNode( 
+      fullPath.substring( 0 , fullPath.lastIndexOf( '/' , end - 1 ) + 1 ) ) ;
+    if( directory == null )
+      return -1 ;
+
+    // the entries of a directory are changed by one process at a 
+    // time, and not while a name is being looked up in it.  Our 
+    // reference keeps the directory's index node, and so its lock, 
+    // in the cache until we are done.
+    FileSystem fileSystem = openFileSystems[ROOT_FILE_SYSTEM] ;
+    directory.getLock().writeLock().lock() ;
+    try
+    {
+      return create( pathname , mode ) ;
+    }
+    finally
+    {
+      directory.getLock().writeLock().unlock() ;
+      fileSystem.releaseIndexNode( directory ) ;
+    }
+  }
+
+  /**
+   * Creates a file or directory with the specified mode, with the 
+   * lock of the directory in which it is created held for writing.
+   * <p>
+   * This is a convenience method for creat().
+   * @param pathname the name of the file to create
+   * @param mode the mode of the file to create
+   * @return the file descriptor index in the process open file list
+   * of the new file; -1 if an error occurs
+   * @exception java.lang.Exception if any underlying action causes
+   * an exception to be thrown
+   */
+  private static int create( String pathname , short mode )
+    throws Exception
+  {
+    ProcessContext process = getProcess() ;
     // get the full path
     String fullPath = getFullPath( pathname ) ;
 
     StringBuffer dirname = new StringBuffer( "/" ) ;
     FileSystem fileSystem = openFileSystems[ROOT_FILE_SYSTEM] ;
-    IndexNode currIndexNode = getRootIndexNode() ;
-    IndexNode prevIndexNode = null ;
+    IndexNode currIndexNode = 
+      fileSystem.getIndexNode( FileSystem.ROOT_INDEX_NODE_NUMBER ) ;
     short indexNodeNumber = FileSystem.ROOT_INDEX_NODE_NUMBER ;
 
     StringTokenizer st = new StringTokenizer( fullPath , "/" ) ;
@@ -426,10 +480,18 @@ public class Kernel
       name = st.nextToken() ;
       if ( ! name.equals("") )
       {
+        // a needed directory does not exist
+        if( currIndexNode == null )
+        {
+          process.errno = ENOENT ;
+          return -1 ;
+        }
+
         // check to see if the current node is a directory
         if( ( currIndexNode.getMode() & S_IFMT ) != S_IFDIR )
         {
           // return (ENOTDIR) if a needed directory is not a directory
+          fileSystem.releaseIndexNode( currIndexNode ) ;
           process.errno = ENOTDIR ;
           return -1 ;
         }
@@ -445,10 +507,12 @@ public class Kernel
         }
 
         // get the next inode corresponding to the token
-        prevIndexNode = currIndexNode ;
-        currIndexNode = new IndexNode() ;
         indexNodeNumber = findNextIndexNode(
-          fileSystem , prevIndexNode , name , currIndexNode ) ;
+          fileSystem , currIndexNode , name ) ;
+        fileSystem.releaseIndexNode( currIndexNode ) ;
+        currIndexNode = null ;
+        if( indexNodeNumber >= 0 )
+          currIndexNode = fileSystem.getIndexNode( indexNodeNumber ) ;
       }
     }
 
@@ -465,21 +529,25 @@ public class Kernel
       // return (EACCES) if the file does not exist and the directory
       // in which it is to be created is not writable
 
-      currIndexNode.setMode( mode ) ;
-      currIndexNode.setNlink( (short)1 ) ;
-
       // allocate the next available inode from the file system
       short newInode = fileSystem.allocateIndexNode() ;
       if( newInode == -1 )
         return -1 ;
 
+      // start the new file with an empty inode
+      currIndexNode = fileSystem.getIndexNode( newInode ) ;
+      new IndexNode().copy( currIndexNode ) ;
+      currIndexNode.setMode( mode ) ;
+      currIndexNode.setNlink( (short)1 ) ;
+
       fileDescriptor = 
         new FileDescriptor( fileSystem , currIndexNode , flags ) ;
       // assign inode for the new file
       fileDescriptor.setIndexNodeNumber( newInode ) ;
 
 // System.out.println( "newInode = " + newInode ) ;
-      fileSystem.writeIndexNode( currIndexNode , newInode ) ;
+      // the inode is written when the file is closed
+      currIndexNode.setDirty( true ) ;
 
       // open the directory
       // ??? it would be nice if we had an "open" that took an inode 
@@ -488,10 +556,12 @@ public class Kernel
       int dir = open( dirname.toString() , O_RDWR ) ;
       if( dir < 0 )
       {
-        Kernel.perror( PROGRAM_NAME ) ;
-        System.err.println( PROGRAM_NAME + 
-          ": unable to open directory for writing" );
-        Kernel.exit( 1 ) ; // ??? is this correct
+        // give back the new index node, empty, and return the error
+        // which open() set
+        new IndexNode().copy( currIndexNode ) ;
+        fileSystem.releaseIndexNode( currIndexNode ) ;
+        fileSystem.freeIndexNode( newInode ) ;
+        return -1 ;
       }
 
       // scan past the directory entries less than the current entry
@@ -500,6 +570,22 @@ public class Kernel
       DirectoryEntry newDirectoryEntry = 
         new DirectoryEntry( newInode , name ) ;
       DirectoryEntry currentDirectoryEntry = new DirectoryEntry() ;
+
+      // if the entries aren't kept in order of name, start at the 
+      // end, so that the new entry is simply added there; a large
+      // directory with a hashed index isn't kept in order, so that 
+      // adding an entry doesn't move every entry after it
+      FileDescriptor directory = process.openFiles.get( dir ) ;
+      boolean ordered = fileSystem.hasSortedDirectories() &&
+        DirectoryIndex.isOrdered( directory.getFileSystem() , 
+        directory.getIndexNode() , new byte[directory.getBlockSize()] ) ;
+      if( ! ordered && lseek( dir , 0 , 2 ) < 0 )
+      {
+        System.err.println( PROGRAM_NAME + 
+          ": error during seek in creat" ) ;
+        System.exit( EXIT_FAILURE ) ;
+      }
+
       while( true )
       {
         // read an entry from the directory
@@ -572,6 +658,7 @@ public class Kernel
       if( ( currIndexNode.getMode() & S_IFMT ) == S_IFDIR )
       {
         // return (EISDIR) if the file is a directory
+        fileSystem.releaseIndexNode( currIndexNode ) ;
         process.errno = EISDIR ;
         return -1 ;
       }
@@ -580,25 +667,18 @@ public class Kernel
       // ??? tbd
       // return (EACCES) if the file does exist and is unwritable
 
-      // free any blocks currently allocated to the file
-      int blockSize = fileSystem.getBlockSize() ;
-      int blocks = ( currIndexNode.getSize() + blockSize - 1 ) /
-        blockSize ;
-      for( int i = 0 ; i < blocks ; i ++ )
+      // update the inode to size 0, and free any blocks currently 
+      // allocated to the file, while nobody is reading or writing it
+      currIndexNode.getLock().writeLock().lock() ;
+      try
       {
-        int address = currIndexNode.getBlockAddress( i ) ;
-        if( address != FileSystem.NOT_A_BLOCK )
-        {
-          fileSystem.freeBlock( address ) ;
-          currIndexNode.setBlockAddress( i , FileSystem.NOT_A_BLOCK ) ;
-        }
+        currIndexNode.setSize( 0 ) ;
+        fileSystem.freeBlocks( currIndexNode ) ;
+      }
+      finally
+      {
+        currIndexNode.getLock().writeLock().unlock() ;
       }
-
-      // update the inode to size 0
-      currIndexNode.setSize( 0 ) ;
-
-      // write the inode to the file system.
-      fileSystem.writeIndexNode( currIndexNode , indexNodeNumber ) ;
 
       // set up the file descriptor
       fileDescriptor = 
@@ -620,7 +700,10 @@ public class Kernel
    * </pre>
    * <p>
    * Note: If this is the last process to terminate, this method
-   * calls finalize().
+   * calls finalize().  If the process was started by a 
+   * ProcessScheduler, this method ends the thread of the process by
+   * throwing ProcessScheduler.ProcessExit, and the simulation goes
+   * on.
    * @param status the exit status
    * @exception java.lang.Exception if any underlying 
    * Exception is thrown
@@ -628,22 +711,76 @@ public class Kernel
   public static void exit( int status )
     throws Exception
   {
+    ProcessContext process = getProcess() ;
     // close anything that might be open for the current process
-    for( int i = 0 ; i < process.openFiles.length ; i ++ )
-      if( process.openFiles[i] != null )
-      {
-        close( i ) ;
-      }
+    for( int i = process.openFiles.nextUsed( 0 ) ; i >= 0 ; 
+      i = process.openFiles.nextUsed( i + 1 ) )
+      close( i ) ;
 
     // terminate the process
-    process = null ;
-    processCount -- ;
+    currentProcess.remove() ;
+    int remaining ;
+    synchronized( Kernel.class )
+    {
+      processCount -- ;
+      remaining = processCount ;
+    }
+
+    // a process run by a scheduler ends only its own thread; the 
+    // program which started it ends the simulation
+    if( process.isScheduled() )
+      throw new ProcessScheduler.ProcessExit( status ) ;
 
     // if this is the last process to end, call finalize
-    if( processCount <= 0 )
+    if( remaining <= 0 )
       finalize( status ) ;
   }
 
+  /**
+   * Create a new process.  The new process has the same uid, gid,
+   * working directory and umask as the current process, and no open
+   * files.  It does not run until a thread attaches to it with 
+   * attach(); each thread runs as at most one process at a time, and
+   * the kernel may be called by many such threads at once.
+   * <p>
+   * Loosely simulates the unix system call:
+   * <pre>
+   *   pid_t fork(void);
+   * </pre>
+   * @return the new process
+   */
+  public static ProcessContext fork()
+  {
+    ProcessContext process = getProcess() ;
+    ProcessContext child = new ProcessContext( process.getUid() , 
+      process.getGid() , process.getDir() , process.getUmask() ) ;
+    synchronized( Kernel.class )
+    {
+      processCount ++ ;
+    }
+    return child ;
+  }
+
+  /**
+   * Make a process the current process of the calling thread.  Kernel
+   * calls made by the thread act on behalf of that process until it
+   * calls exit().
+   * @param newProcess a process created by fork()
+   */
+  public static void attach( ProcessContext newProcess )
+  {
+    currentProcess.set( newProcess ) ;
+  }
+
+  /**
+   * Get the current process of the calling thread.
+   * @return the process; null if the thread has none
+   */
+  public static ProcessContext getProcess()
+  {
+    return currentProcess.get() ;
+  }
+
   /**
    * Set the current file pointer for a file.
    * The current file position is updated based on the values of
@@ -668,12 +805,13 @@ public class Kernel
    */
   public static int lseek( int fd , int offset , int whence )
   {
+    ProcessContext process = getProcess() ;
     // check fd
     int status = check_fd( fd ) ;
     if( status < 0 )
       return status ;
 
-    FileDescriptor file = process.openFiles[fd] ;
+    FileDescriptor file = process.openFiles.get( fd ) ;
 
     int newOffset ;
     if( whence == 0 )
@@ -747,9 +885,8 @@ public class Kernel
     // get the full path name
     String fullPath = getFullPath( pathname ) ;
 
-    IndexNode indexNode = new IndexNode() ;
-    short indexNodeNumber = findIndexNode( fullPath , indexNode ) ;
-    if( indexNodeNumber < 0 )
+    IndexNode indexNode = findIndexNode( fullPath ) ;
+    if( indexNode == null )
       return -1 ;
 
     // ??? return (Exxx) if the file is not readable 
@@ -761,7 +898,6 @@ public class Kernel
     // set up the file descriptor
     FileDescriptor fileDescriptor = new FileDescriptor( 
       openFileSystems[ ROOT_FILE_SYSTEM ] , indexNode , flags ) ;
-    fileDescriptor.setIndexNodeNumber( indexNodeNumber ) ;
 
     return open( fileDescriptor ) ;
   }
@@ -775,46 +911,39 @@ public class Kernel
    * @param fileDescriptor the file descriptor
    * @return the file descriptor index in the process open file 
    * list assigned to this open file
+   * @exception java.io.IOException if the file can't be opened and
+   * its changed index node can't be written
    */
   private static int open( FileDescriptor fileDescriptor )
+    throws IOException
   {
-    // scan the kernel open file list for a slot 
-    // and add our new file descriptor
-    int kfd = -1 ;
-    for( int i = 0 ; i < MAX_OPEN_FILES ; i ++ )
-      if( openFiles[i] == null )
-      {
-        kfd = i ;
-        openFiles[kfd] = fileDescriptor ;
-        break ;
-      }
+    ProcessContext process = getProcess() ;
+    // add our new file descriptor to the lowest free slot
+    // of the kernel open file list
+    int kfd = openFiles.add( fileDescriptor ) ;
     if( kfd == -1 )
     { 
       // return (ENFILE) if there are already too many open files
+      fileDescriptor.close() ;
       process.errno = ENFILE ;
       return -1 ;
     }
 
-    // scan the list of open files for a slot 
-    // and add our new file descriptor
-    int fd = -1 ;
-    for( int i = 0 ; i < ProcessContext.MAX_OPEN_FILES ; i ++ )
-      if( process.openFiles[i] == null )
-      {
-        fd = i ;
-        process.openFiles[fd] = fileDescriptor ;
-        break ;
-      }
+    // add our new file descriptor to the lowest free slot
+    // of the list of open files
+    int fd = process.openFiles.add( fileDescriptor ) ;
     if( fd == -1 )
     {
       // remove the file from the kernel list
-      openFiles[kfd] = null ;
+      openFiles.remove( kfd ) ;
+      fileDescriptor.close() ;
       // return (EMFILE) if there isn't room left
       process.errno = EMFILE ;
       return -1 ;
     }
 
     // return the index of the file descriptor for now open file
+    fileDescriptor.setKernelSlot( kfd ) ;
     return fd ;
   }
 
@@ -835,40 +964,53 @@ public class Kernel
   public static int read( int fd , byte[] buf , int count )
     throws Exception
   {
+    ProcessContext process = getProcess() ;
     // check fd
     int status = check_fd_for_read( fd ) ;
     if( status < 0 )
       return status ;
 
-    FileDescriptor file = process.openFiles[fd] ;
-    int offset = file.getOffset() ;
-    int size = file.getSize() ;
-    int blockSize = file.getBlockSize() ;
-    byte[] bytes = file.getBytes() ;
-    int readCount = 0 ;
-    for( int i = 0 ; i < count ; i ++ )
+    FileDescriptor file = process.openFiles.get( fd ) ;
+
+    // any number of processes may read the file at once, but not
+    // while it is being written
+    ReentrantReadWriteLock.ReadLock lock = 
+      file.getIndexNode().getLock().readLock() ;
+    lock.lock() ;
+    try
     {
-      // if we read to the end of the file, stop reading
-      if( offset >= size )
-        break ;
-      // if this is the first time through the loop,
-      // or if we're at the beginning of a block, load the data block
-      if( ( i == 0 ) || ( ( offset % blockSize ) == 0 ) )
+      int offset = file.getOffset() ;
+      int size = file.getSize() ;
+      int blockSize = file.getBlockSize() ;
+      byte[] bytes = file.getBytes() ;
+      int readCount = 0 ;
+      // until we have read enough, or read to the end of the file
+      while( readCount < count && offset < size )
       {
-        status = file.readBlock( (short)( offset / blockSize ) ) ;
+        // we can copy up to the end of the block, the end of the 
+        // file, or as much as is wanted, whichever comes first
+        int blockOffset = offset % blockSize ;
+        int length = Math.min( blockSize - blockOffset , 
+          Math.min( size - offset , count - readCount ) ) ;
+        // load the data block, unless the file buffer already has it
+        status = file.readBlock( offset / blockSize ) ;
         if( status < 0 )
           return status ;
+        // copy the bytes from the file buffer to the read buffer
+        System.arraycopy( bytes , blockOffset , buf , readCount , length ) ;
+        offset += length ;
+        readCount += length ;
       }
-      // copy a byte from the file buffer to the read buffer
-      buf[i] = bytes[ offset % blockSize ] ;
-      offset ++ ;
-      readCount ++ ;
-    }
-    // update the offset
-    file.setOffset( offset ) ;
+      // update the offset
+      file.setOffset( offset ) ;
 
-    // return the count of bytes read
-    return readCount ;
+      // return the count of bytes read
+      return readCount ;
+    }
+    finally
+    {
+      lock.unlock() ;
+    }
   }
 
   /**
@@ -889,38 +1031,51 @@ public class Kernel
   public static int readdir( int fd , DirectoryEntry dirp ) 
     throws Exception
   {
+    ProcessContext process = getProcess() ;
     // check fd
     int status = check_fd_for_read( fd ) ;
     if( status < 0 )
       return status ;
 
-    FileDescriptor file = process.openFiles[fd] ;
+    FileDescriptor file = process.openFiles.get( fd ) ;
 
-    // check to see if the file is a directory
-    if( ( file.getMode() & S_IFMT ) != S_IFDIR )
+    // any number of processes may read the directory at once, but
+    // not while it is being written
+    ReentrantReadWriteLock.ReadLock lock = 
+      file.getIndexNode().getLock().readLock() ;
+    lock.lock() ;
+    try
     {
-      // return (ENOTDIR) if a needed directory is not a directory
-      process.errno = ENOTDIR ;
-      return -1 ;
-    }
+      // check to see if the file is a directory
+      if( ( file.getMode() & S_IFMT ) != S_IFDIR )
+      {
+        // return (ENOTDIR) if a needed directory is not a directory
+        process.errno = ENOTDIR ;
+        return -1 ;
+      }
 
-    // return 0 if at end of directory
-    if( file.getOffset() >= file.getSize() )
-      return 0 ;
+      // return 0 if at end of directory
+      if( file.getOffset() >= file.getSize() )
+        return 0 ;
 
-    // read a block, if needed
-    status = file.readBlock( (short)( file.getOffset() / file.getBlockSize() ) ) ;
-    if( status < 0 )
-      return status ;
+      // read a block, if needed
+      status = file.readBlock( file.getOffset() / file.getBlockSize() ) ;
+      if( status < 0 )
+        return status ;
 
-    // read bytes from the block into the DirectoryEntry
-    dirp.read( file.getBytes() , 
-      file.getOffset() % file.getBlockSize() ) ;
-    file.setOffset( file.getOffset() + 
-      DirectoryEntry.DIRECTORY_ENTRY_SIZE ) ;
+      // read bytes from the block into the DirectoryEntry
+      dirp.read( file.getBytes() , 
+        file.getOffset() % file.getBlockSize() ) ;
+      file.setOffset( file.getOffset() + 
+        DirectoryEntry.DIRECTORY_ENTRY_SIZE ) ;
 
-    // return the size of a DirectoryEntry
-    return DirectoryEntry.DIRECTORY_ENTRY_SIZE ;
+      // return the size of a DirectoryEntry
+      return DirectoryEntry.DIRECTORY_ENTRY_SIZE ;
+    }
+    finally
+    {
+      lock.unlock() ;
+    }
   }
 
   /**
@@ -936,12 +1091,13 @@ public class Kernel
   public static int fstat( int fd , Stat buf )
     throws Exception
   {
+    ProcessContext process = getProcess() ;
     // check fd
     int status = check_fd( fd ) ;
     if( status < 0 )
       return status ;
 
-    FileDescriptor fileDescriptor = process.openFiles[fd] ;
+    FileDescriptor fileDescriptor = process.openFiles.get( fd ) ;
     short deviceNumber = fileDescriptor.getDeviceNumber() ;
     short indexNodeNumber = fileDescriptor.getIndexNodeNumber() ;
     IndexNode indexNode = fileDescriptor.getIndexNode() ;
@@ -967,16 +1123,14 @@ public class Kernel
   public static int stat( String name , Stat buf )
     throws Exception
   {
-    // a buffer for reading directory entries
-    DirectoryEntry directoryEntry = new DirectoryEntry() ;
+    ProcessContext process = getProcess() ;
 
     // get the full path
     String path = getFullPath( name ) ;
 
     // find the index node
-    IndexNode indexNode = new IndexNode() ;
-    short indexNodeNumber = findIndexNode( path , indexNode ) ; 
-    if( indexNodeNumber < 0 )
+    IndexNode indexNode = findIndexNode( path ) ; 
+    if( indexNode == null )
     {
       // return ENOENT
       process.errno = ENOENT ;
@@ -985,12 +1139,52 @@ public class Kernel
 
     // copy information to buf
     buf.st_dev = ROOT_FILE_SYSTEM ;
-    buf.st_ino = indexNodeNumber ;
+    buf.st_ino = indexNode.getIndexNodeNumber() ;
     buf.copyIndexNode( indexNode ) ;
+    openFileSystems[ROOT_FILE_SYSTEM].releaseIndexNode( indexNode ) ;
 
     return 0 ;
   }
 
+  /**
+   * Get information about the file system which holds a named file:
+   * its block size, the number of data blocks and index nodes, and
+   * how many of each are free.
+   * <p>
+   * Simulates the unix system call:
+   * <pre>
+   *   int statfs(const char *path, struct statfs *buf);
+   * </pre>
+   * @param name the path name of any file in the file system
+   * @param buf a StatFs to be filled in with the file system's 
+   * information
+   * @return 0 if successful; -1 if the file can't be found.
+   * @exception java.lang.Exception if any underlying action causes
+   * an exception to be thrown
+   */
+  public static int statfs( String name , StatFs buf )
+    throws Exception
+  {
+    ProcessContext process = getProcess() ;
+    // get the full path
+    String path = getFullPath( name ) ;
+
+    // make sure the file exists
+    IndexNode indexNode = findIndexNode( path ) ; 
+    if( indexNode == null )
+    {
+      // return ENOENT
+      process.errno = ENOENT ;
+      return -1 ;
+    }
+    FileSystem fileSystem = openFileSystems[ROOT_FILE_SYSTEM] ;
+    fileSystem.releaseIndexNode( indexNode ) ;
+
+    // copy information to buf
+    buf.copyFileSystem( fileSystem ) ;
+    return 0 ;
+  }
+
   /**
    * First commits inodes to buffers, and then buffers to disk.
    * <p>
@@ -998,17 +1192,68 @@ public class Kernel
    * <pre>
    *   int sync(void);
    * </pre>
+   * @return zero if successful; -1 if a file system could not be 
+   * written
    */
-  public static void sync()
+  public static int sync()
   {
+    ProcessContext process = getProcess() ;
     // write out superblock if updated
     // write out free list blocks if updated
     // write out inode blocks if updated
     // write out data blocks if updated
 
-    // at present, all changes to inodes, data blocks, 
-    // and free list blocks
-    // are written as they go, so this method does nothing.
+    // each file system writes its changed inodes, free list and
+    // inode bitmap into the block cache, and then writes the dirty
+    // blocks in the cache to disk.
+    int status = 0 ;
+    for( int i = 0 ; i < MAX_OPEN_FILE_SYSTEMS ; i ++ )
+    {
+      if( openFileSystems[i] == null )
+        continue ;
+      try
+      {
+        openFileSystems[i].sync() ;
+      }
+      catch( IOException e )
+      {
+        // return (EIO) if the file system could not be written; 
+        // there is no process to tell when finalize() calls us
+        if( process != null )
+          process.errno = EIO ;
+        status = -1 ;
+      }
+    }
+    return status ;
+  }
+
+  /**
+   * Commits the inode and blocks of a file to disk.  Since the block
+   * cache doesn't know which file a block belongs to, this writes 
+   * the file's inode if it has changed, and then syncs the file 
+   * system which holds it.
+   * <p>
+   * Simulates unix system call:
+   * <pre>
+   *   int fsync(int fd);
+   * </pre>
+   * @param fd the file descriptor of the file
+   * @return Zero if successful; -1 if the file descriptor is invalid.
+   * @exception java.io.IOException if any underlying write causes
+   * IOException to be thrown
+   */
+  public static int fsync( int fd ) throws IOException
+  {
+    ProcessContext process = getProcess() ;
+    // check fd
+    int status = check_fd( fd ) ;
+    if( status < 0 )
+      return status ;
+
+    FileDescriptor file = process.openFiles.get( fd ) ;
+    file.flush() ;
+    file.getFileSystem().sync() ;
+    return 0 ;
   }
 
   /**
@@ -1024,42 +1269,88 @@ public class Kernel
   public static int write( int fd , byte[] buf , int count )
     throws Exception
   {
+    ProcessContext process = getProcess() ;
     // check fd
     int status = check_fd_for_write( fd ) ;
     if( status < 0 )
       return status ;
 
-    FileDescriptor file = process.openFiles[fd] ;
-
-    // return (ENOSPC) if the device containing the file system
-    // referred to by fd has not room for the data
+    FileDescriptor file = process.openFiles.get( fd ) ;
+    FileSystem fileSystem = file.getFileSystem() ;
 
-    int offset = file.getOffset() ;
-    int size = file.getSize() ;
-    int blockSize = file.getBlockSize() ;
-    byte[] bytes = file.getBytes() ;
-    int writeCount = 0 ;
-    for( int i = 0 ; i < count ; i ++ )
+    // one process at a time may write the file, and not while it is
+    // being read
+    ReentrantReadWriteLock.WriteLock lock = 
+      file.getIndexNode().getLock().writeLock() ;
+    lock.lock() ;
+    try
     {
-      // if this is the first time through the loop,
-      // or if we're at the beginning of a block, 
-      // load or allocate a data block
-      if( ( i == 0 ) || ( ( offset % blockSize ) == 0 ) )
+      // directory entries written as plain data don't go through 
+      // writedir(), so forget every cached lookup in the directory,
+      // and stop using its hashed index until it is rebuilt
+      boolean directory = ( file.getMode() & S_IFMT ) == S_IFDIR ;
+      boolean sorted = directory && fileSystem.hasSortedDirectories() ;
+      boolean ordered = false ;
+      if( directory )
       {
-        status = file.readBlock( (short)( offset / blockSize ) ) ;
-        if( status < 0 )
-          return status ;
+        fileSystem.getDirectoryEntryCache().removeDirectory( 
+          file.getIndexNodeNumber() ) ;
+        if( DirectoryIndex.invalidate( file ) < 0 )
+        {
+          // return (EIO) if the index can't be marked out of date
+          process.errno = EIO ;
+          return -1 ;
+        }
+        if( sorted )
+          ordered = DirectoryIndex.isOrdered( fileSystem , 
+            file.getIndexNode() , new byte[file.getBlockSize()] ) ;
       }
-      // copy a byte from the write buffer to the file buffer
-      bytes[ offset % blockSize ] = buf[i] ;
-      offset ++ ;
-      // if we get to the end of a block, write it out
-      if( ( offset % blockSize ) == 0 )
+
+      // return (ENOSPC) if the device containing the file system
+      // referred to by fd has not room for the data
+
+      int offset = file.getOffset() ;
+      int size = file.getSize() ;
+      int blockSize = file.getBlockSize() ;
+      byte[] bytes = file.getBytes() ;
+      int writeCount = 0 ;
+      boolean preallocated = false ;
+      while( writeCount < count )
       {
-        status = 
-          file.writeBlock( (short)( ( offset - 1 ) / blockSize ) ) ;
+        // we can copy up to the end of the block, or as much as is 
+        // left to write, whichever comes first
+        int blockOffset = offset % blockSize ;
+        int length = Math.min( blockSize - blockOffset , count - writeCount ) ;
+
+        // the first time we reach the beginning of a block with
+        // several whole blocks left to write, allocate them all 
+        // at once so that they can be placed contiguously
+        if( ! preallocated && blockOffset == 0 && 
+          count - writeCount >= 2 * blockSize )
+        {
+          file.allocateBlocks( offset / blockSize , 
+            ( count - writeCount ) / blockSize ) ;
+          preallocated = true ;
+        }
+
+        // unless we are replacing the whole block, load what is 
+        // already there
+        if( length < blockSize )
+        {
+          status = file.readBlock( offset / blockSize ) ;
+          if( status < 0 )
+            return status ;
+        }
+
+        // copy the bytes from the write buffer to the file buffer,
+        // and write the block out
+        System.arraycopy( buf , writeCount , bytes , blockOffset , length ) ;
+        status = file.writeBlock( offset / blockSize ) ;
         if( status < 0 )
           return status ;
+        offset += length ;
+        writeCount += length ;
+
         // update the file size if it grew
         if( offset > size )
         {
@@ -1067,26 +1358,29 @@ public class Kernel
           size = offset ;
         }
       }
-      writeCount ++ ;
-    }
 
-    // write the last block if we wrote anything to it
-    if( ( offset % blockSize ) > 0 )
-    {
-      status = file.writeBlock( (short)( ( offset - 1 ) / blockSize ) ) ;
-      if( status < 0 )
-        return status ;
-    }
-    
-    // update the file size if it grew
-    if( offset > size )
-      file.setSize( offset ) ;
+      // in a file system with sorted directories, entries written as
+      // plain data may not be in order of name; if they aren't, mark
+      // the directory so that it is no longer searched by binary search
+      if( sorted && 
+        DirectoryIndex.checkOrder( file , file.getOffset() , offset , 
+        ordered ) < 0 )
+      {
+        // return (EIO) if the directory can't be marked out of order
+        process.errno = EIO ;
+        return -1 ;
+      }
 
-    // update the offset
-    file.setOffset( offset ) ;
+      // update the offset
+      file.setOffset( offset ) ;
 
-    // return the count of bytes written
-    return writeCount ;
+      // return the count of bytes written
+      return writeCount ;
+    }
+    finally
+    {
+      lock.unlock() ;
+    }
   }
 
   /**
@@ -1108,43 +1402,92 @@ public class Kernel
   public static int writedir( int fd , DirectoryEntry dirp ) 
     throws Exception
   {
+    ProcessContext process = getProcess() ;
     // check fd
     int status = check_fd_for_write( fd ) ;
     if( status < 0 )
       return status ;
 
-    FileDescriptor file = process.openFiles[fd] ;
+    FileDescriptor file = process.openFiles.get( fd ) ;
 
-    // check to see if the file is a directory
-    if( ( file.getMode() & S_IFMT ) != S_IFDIR )
+    // one process at a time may write the directory, and not while
+    // it is being read
+    ReentrantReadWriteLock.WriteLock lock = 
+      file.getIndexNode().getLock().writeLock() ;
+    lock.lock() ;
+    try
     {
-      // return (ENOTDIR) if a needed directory is not a directory
-      process.errno = ENOTDIR ;
-      return -1 ;
-    }
+      // check to see if the file is a directory
+      if( ( file.getMode() & S_IFMT ) != S_IFDIR )
+      {
+        // return (ENOTDIR) if a needed directory is not a directory
+        process.errno = ENOTDIR ;
+        return -1 ;
+      }
 
-    short blockSize = file.getBlockSize() ;
-    // allocate or read a block
-    status = file.readBlock( (short)( file.getOffset() / blockSize ) ) ;
-    if( status < 0 )
-      return status ;
+      short blockSize = file.getBlockSize() ;
 
-    // write bytes from the DirectoryEntry into the block
-    dirp.write( file.getBytes() , file.getOffset() % blockSize ) ;
+      // allocate or read a block
+      status = file.readBlock( file.getOffset() / blockSize ) ;
+      if( status < 0 )
+        return status ;
 
-    // write the updated block
-    status = file.writeBlock( (short)( file.getOffset() / blockSize ) ) ;
-    if( status < 0 )
-      return status ;
+      // forget any cached lookups of the name being written and of
+      // the name it replaces, if any
+      DirectoryEntryCache directoryEntryCache = 
+        file.getFileSystem().getDirectoryEntryCache() ;
+      DirectoryEntry oldEntry = null ;
+      if( file.getOffset() < file.getSize() )
+      {
+        oldEntry = new DirectoryEntry() ;
+        oldEntry.read( file.getBytes() , file.getOffset() % blockSize ) ;
+        directoryEntryCache.remove( file.getIndexNodeNumber() , 
+          oldEntry.getName() ) ;
+      }
+      directoryEntryCache.remove( file.getIndexNodeNumber() , 
+        dirp.getName() ) ;
+
+      // write bytes from the DirectoryEntry into the block
+      dirp.write( file.getBytes() , file.getOffset() % blockSize ) ;
+
+      // write the updated block
+      status = file.writeBlock( file.getOffset() / blockSize ) ;
+      if( status < 0 )
+        return status ;
 
-    // update the file size
-    file.setOffset( file.getOffset() + 
-      DirectoryEntry.DIRECTORY_ENTRY_SIZE ) ;
-    if( file.getOffset() > file.getSize() )
-      file.setSize( file.getOffset() ) ;
+      // update the file size
+      file.setOffset( file.getOffset() + 
+        DirectoryEntry.DIRECTORY_ENTRY_SIZE ) ;
+      if( file.getOffset() > file.getSize() )
+        file.setSize( file.getOffset() ) ;
+
+      // bring the hashed index of a large directory up to date; if 
+      // we can't, the directory is simply searched without it
+      if( oldEntry == null )
+        DirectoryIndex.add( file , dirp ) ;
+      else
+        DirectoryIndex.replace( file , oldEntry , dirp ) ;
+
+      // in a file system with sorted directories, an entry written 
+      // out of order means names can no longer be found by binary 
+      // search, so the directory must be marked as out of order
+      if( file.getFileSystem().hasSortedDirectories() &&
+        DirectoryIndex.checkOrder( file , 
+        file.getOffset() - DirectoryEntry.DIRECTORY_ENTRY_SIZE , 
+        file.getOffset() , true ) < 0 )
+      {
+        // return (EIO) if the directory can't be marked out of order
+        process.errno = EIO ;
+        return -1 ;
+      }
 
-    // return the size of a DirectoryEntry
-    return DirectoryEntry.DIRECTORY_ENTRY_SIZE ;
+      // return the size of a DirectoryEntry
+      return DirectoryEntry.DIRECTORY_ENTRY_SIZE ;
+    }
+    finally
+    {
+      lock.unlock() ;
+    }
   }
 
 /*
@@ -1172,13 +1515,13 @@ to be done:
   }
 
   /**
-   * This is an internal variable for the simulator which always 
-   * points to the 
-   * current ProcessContext.  If multiple processes are implemented,
-   * then this variable will "point" to different processes at
-   * different times.
+   * This is an internal variable for the simulator which holds
+   * the current ProcessContext of each thread.  Each thread 
+   * which calls the kernel runs as its own process; new processes
+   * are made by fork() and bound to a thread by attach().
    */
-  private static ProcessContext process = null ;
+  private static final ThreadLocal<ProcessContext> currentProcess = 
+    new ThreadLocal<ProcessContext>() ;
 
   /**
    * The number of processes.
@@ -1187,7 +1530,7 @@ to be done:
 
   private static int MAX_OPEN_FILES = 0 ;
 
-  private static FileDescriptor[] openFiles = null ;
+  private static FileDescriptorTable openFiles = null ;
 
   // ??? should be private?
   public static int MAX_OPEN_FILE_SYSTEMS = 1 ;
@@ -1207,9 +1550,18 @@ to be done:
    * by the system property "filesys.conf") and reads any properties
    * given in that file, including the filesystem.root.filename and
    * filesystem.root.mode ("r", "rw").
+   * <p>
+   * In a process started by a ProcessScheduler the kernel is 
+   * already running, and this method does nothing.
    */
   public static void initialize()
   {
+    // a process run by a scheduler starts in a kernel which is 
+    // already initialized
+    ProcessContext process = getProcess() ;
+    if( process != null && process.isScheduled() )
+      return ;
+
     // check to see if the name of an alternate configuration
     // file has been specified.  This can be done, for example,
     //   java -Dfilesys.conf=myfile.txt program-name parameter ...
@@ -1240,6 +1592,88 @@ to be done:
     String rootFileSystemMode = 
       properties.getProperty( "filesystem.root.mode" , "rw" ) ;
 
+    String rootFileSystemDevice = properties.getProperty( 
+      "filesystem.root.device" , FileSystem.DEFAULT_DEVICE ) ;
+
+    int rootFileSystemCacheBlocks = FileSystem.DEFAULT_CACHE_BLOCKS ;
+    try
+    {
+      rootFileSystemCacheBlocks = Integer.parseInt( properties.getProperty(
+        "filesystem.root.cache_blocks" , 
+        Integer.toString( FileSystem.DEFAULT_CACHE_BLOCKS ) ) ) ;
+    }
+    catch( NumberFormatException e )
+    {
+      System.err.println( PROGRAM_NAME + 
+        ": invalid number for property filesystem.root.cache_blocks in configuration file" ) ;
+      System.exit( EXIT_FAILURE );
+    }
+
+    // get the number of index nodes to cache for the root file system
+    int rootFileSystemCacheIndexNodes = FileSystem.DEFAULT_CACHE_INDEX_NODES ;
+    try
+    {
+      rootFileSystemCacheIndexNodes = Integer.parseInt( properties.getProperty(
+        "filesystem.root.cache_inodes" , 
+        Integer.toString( FileSystem.DEFAULT_CACHE_INDEX_NODES ) ) ) ;
+    }
+    catch( NumberFormatException e )
+    {
+      System.err.println( PROGRAM_NAME + 
+        ": invalid number for property filesystem.root.cache_inodes in configuration file" ) ;
+      System.exit( EXIT_FAILURE );
+    }
+
+    // get the number of directory lookups to cache for the root 
+    // file system
+    int rootFileSystemCacheDirectoryEntries = 
+      DirectoryEntryCache.DEFAULT_CAPACITY ;
+    try
+    {
+      rootFileSystemCacheDirectoryEntries = Integer.parseInt( 
+        properties.getProperty( "filesystem.root.cache_dentries" , 
+        Integer.toString( DirectoryEntryCache.DEFAULT_CAPACITY ) ) ) ;
+    }
+    catch( NumberFormatException e )
+    {
+      System.err.println( PROGRAM_NAME + 
+        ": invalid number for property filesystem.root.cache_dentries in configuration file" ) ;
+      System.exit( EXIT_FAILURE );
+    }
+
+    // get the number of entries a directory of the root file system
+    // must have before it is given a hashed index
+    int rootFileSystemDirectoryIndexThreshold = 
+      DirectoryIndex.DEFAULT_THRESHOLD ;
+    try
+    {
+      rootFileSystemDirectoryIndexThreshold = Integer.parseInt( 
+        properties.getProperty( "filesystem.root.dir_index_threshold" , 
+        Integer.toString( DirectoryIndex.DEFAULT_THRESHOLD ) ) ) ;
+    }
+    catch( NumberFormatException e )
+    {
+      System.err.println( PROGRAM_NAME + 
+        ": invalid number for property filesystem.root.dir_index_threshold in configuration file" ) ;
+      System.exit( EXIT_FAILURE );
+    }
+
+    // get the largest number of blocks to read ahead of a file of
+    // the root file system which is being read sequentially
+    int rootFileSystemReadAheadBlocks = FileSystem.DEFAULT_READ_AHEAD_BLOCKS ;
+    try
+    {
+      rootFileSystemReadAheadBlocks = Integer.parseInt( 
+        properties.getProperty( "filesystem.root.read_ahead_blocks" , 
+        Integer.toString( FileSystem.DEFAULT_READ_AHEAD_BLOCKS ) ) ) ;
+    }
+    catch( NumberFormatException e )
+    {
+      System.err.println( PROGRAM_NAME + 
+        ": invalid number for property filesystem.root.read_ahead_blocks in configuration file" ) ;
+      System.exit( EXIT_FAILURE );
+    }
+
     // get the current process properties
     short uid = 1 ;
     try
@@ -1284,7 +1718,7 @@ to be done:
     try
     {
       MAX_OPEN_FILES = Integer.parseInt( properties.getProperty(
-        "kernel.max_open_files" , "20" ) ) ;
+        "kernel.max_open_files" , "0" ) ) ;
     }
     catch( NumberFormatException e )
     {
@@ -1306,17 +1740,33 @@ to be done:
     }
 
     // create open file array
-    openFiles = new FileDescriptor[MAX_OPEN_FILES] ;
+    openFiles = new FileDescriptorTable( MAX_OPEN_FILES ) ;
 
     // create the first process
-    process = new ProcessContext( uid , gid , dir , umask ) ;
+    attach( new ProcessContext( uid , gid , dir , umask ) ) ;
     processCount ++ ;
 
     // open the root file system
     try
     {
+      BlockDevice device = FileSystem.openBlockDevice( 
+        rootFileSystemDevice , rootFileSystemFilename , 
+        rootFileSystemMode ) ;
+      if( device == null )
+      {
+        System.err.println( PROGRAM_NAME + 
+          ": invalid value for property filesystem.root.device in configuration file" ) ;
+        System.exit( EXIT_FAILURE ) ;
+      }
       openFileSystems[ROOT_FILE_SYSTEM] = new FileSystem( 
-        rootFileSystemFilename , rootFileSystemMode ) ;
+        device , rootFileSystemCacheBlocks , 
+        rootFileSystemCacheIndexNodes ) ;
+      openFileSystems[ROOT_FILE_SYSTEM].getDirectoryEntryCache().setCapacity(
+        rootFileSystemCacheDirectoryEntries ) ;
+      openFileSystems[ROOT_FILE_SYSTEM].setDirectoryIndexThreshold(
+        rootFileSystemDirectoryIndexThreshold ) ;
+      openFileSystems[ROOT_FILE_SYSTEM].setReadAheadBlocks(
+        rootFileSystemReadAheadBlocks ) ;
     }
     catch( IOException e )
     {
@@ -1349,12 +1799,14 @@ to be done:
   public static void finalize( int status )
     throws Exception
   {
-    // exit() any remaining processes
-    if( process != null )
+    // exit() the current process, if it hasn't already
+    if( getProcess() != null )
       exit( 0 ) ;
 
     // flush file system blocks
-    sync() ;
+    if( sync() < 0 )
+      System.err.println( PROGRAM_NAME + 
+        ": error writing file systems" ) ;
 
     // close the root file system
     openFileSystems[ROOT_FILE_SYSTEM].close() ;
@@ -1379,10 +1831,9 @@ Some internal methods.
    */
   private static int check_fd( int fd )
   {
+    ProcessContext process = getProcess() ;
     // look for the file descriptor in the open file list
-    if ( fd < 0 || 
-         fd >= process.openFiles.length || 
-         process.openFiles[fd] == null )
+    if ( process.openFiles.get( fd ) == null )
     {
       // return (EBADF) if file descriptor is invalid
       process.errno = EBADF ;
@@ -1406,11 +1857,12 @@ Some internal methods.
    */
   private static int check_fd_for_read( int fd )
   {
+    ProcessContext process = getProcess() ;
     int status = check_fd( fd ) ;
     if( status < 0 )
       return -1 ;
 
-    FileDescriptor fileDescriptor = process.openFiles[fd] ;
+    FileDescriptor fileDescriptor = process.openFiles.get( fd ) ;
     int flags = fileDescriptor.getFlags() ;
     if( ( flags != O_RDONLY ) && 
         ( flags != O_RDWR ) )
@@ -1437,11 +1889,12 @@ Some internal methods.
    */
   private static int check_fd_for_write( int fd )
   {
+    ProcessContext process = getProcess() ;
     int status = check_fd( fd ) ;
     if( status < 0 )
       return -1 ;
 
-    FileDescriptor fileDescriptor = process.openFiles[fd] ;
+    FileDescriptor fileDescriptor = process.openFiles.get( fd ) ;
     int flags = fileDescriptor.getFlags() ;
     if( ( flags != O_WRONLY ) && 
         ( flags != O_RDWR ) )
@@ -1464,6 +1917,7 @@ Some internal methods.
    */
   private static String getFullPath( String pathname )
   {
+    ProcessContext process = getProcess() ;
     String fullPath = null ;
 
     // make sure the path starts with a slash
@@ -1474,20 +1928,22 @@ Some internal methods.
     return fullPath ;
   }
 
-  private static IndexNode rootIndexNode = null ;
-
-  private static IndexNode getRootIndexNode()
-  {
-    if( rootIndexNode == null )
-      rootIndexNode = openFileSystems[ROOT_FILE_SYSTEM].getRootIndexNode() ;
-    return rootIndexNode ;
-  }
-
+  /**
+   * Look up a name in a directory.
+   * This is a convenience method.
+   * @param fileSystem the file system containing the directory
+   * @param indexNode the index node of the directory
+   * @param name the name to look for
+   * @return the index node number for the name; -1 if the name is
+   * not found or an error occurs
+   * @exception java.lang.Exception if any underlying action causes
+   * an exception to be thrown
+   */
   private static short findNextIndexNode( 
-    FileSystem fileSystem , IndexNode indexNode , String name , 
-    IndexNode nextIndexNode )
+    FileSystem fileSystem , IndexNode indexNode , String name )
     throws Exception
   {
+    ProcessContext process = getProcess() ;
     // if stat isn't a directory give an error
     if( ( indexNode.getMode() & S_IFMT ) != S_IFDIR )
     {
@@ -1500,47 +1956,87 @@ Some internal methods.
     // ??? tbd
     // return (EACCES) if a needed directory is not readable
 
-    FileDescriptor fileDescriptor = 
-      new FileDescriptor( fileSystem , indexNode , O_RDONLY ) ;
-    int fd = open( fileDescriptor ) ;
-    if( fd < 0 )
+    // if we have looked for this name in this directory before, and
+    // the directory hasn't changed since, we already know the answer
+    DirectoryEntryCache directoryEntryCache = 
+      fileSystem.getDirectoryEntryCache() ;
+    short directory = indexNode.getIndexNodeNumber() ;
+    Short cached = directoryEntryCache.get( directory , name ) ;
+    if( cached != null )
     {
-      // process.errno = ???
-      return -1 ;
+      if( cached.shortValue() == DirectoryEntryCache.NOT_FOUND )
+      {
+        process.errno = ENOENT ;
+        return -1 ;
+      }
+      return cached.shortValue() ;
     }
 
+    // any number of processes may look in the directory at once, but
+    // not while its entries are being changed
+    indexNode.getLock().readLock().lock() ;
+    try
+    {
+      return lookup( fileSystem , indexNode , name ) ;
+    }
+    finally
+    {
+      indexNode.getLock().readLock().unlock() ;
+    }
+  }
+
+  /**
+   * Look up a name in a directory which isn't in the directory entry
+   * cache, with the directory's lock held for reading, and add what 
+   * is found to the cache.
+   * This is a convenience method for findNextIndexNode().
+   * @param fileSystem the file system containing the directory
+   * @param indexNode the index node of the directory
+   * @param name the name to look for
+   * @return the index node number for the name; -1 if the name is
+   * not found or an error occurs
+   * @exception java.lang.Exception if any underlying action causes
+   * an exception to be thrown
+   */
+  private static short lookup( 
+    FileSystem fileSystem , IndexNode indexNode , String name )
+    throws Exception
+  {
+    ProcessContext process = getProcess() ;
+    DirectoryEntryCache directoryEntryCache = 
+      fileSystem.getDirectoryEntryCache() ;
+    short directory = indexNode.getIndexNodeNumber() ;
+
+    // the directory is read a block at a time through the block
+    // cache rather than opened, so looking up a path uses no file 
+    // descriptors or open file table slots
+    byte[] bytes = new byte[fileSystem.getBlockSize()] ;
+
     // create a buffer for reading directory entries
     DirectoryEntry directoryEntry = new DirectoryEntry() ;
 
     int status = 0 ;
-    short indexNodeNumber = -1 ;
-    // while there are more directory blocks to be read
-    while( true )
+    // a large directory may have a hashed index, which tells us
+    // where to look without reading the whole directory
+    short indexNodeNumber = 
+      DirectoryIndex.lookup( fileSystem , indexNode , name , bytes ) ;
+    if( indexNodeNumber >= 0 )
+      status = DirectoryEntry.DIRECTORY_ENTRY_SIZE ;
+    else if( indexNodeNumber != DirectoryIndex.NOT_FOUND )
     {
-      // read a directory entry
-      status = readdir( fd , directoryEntry ) ;
-      if( status <= 0 )
-      {
-        // we got to the end of the directory, or 
-        // encountered an error, so quit
-        break ;
-      }
-      if( directoryEntry.getName().equals( name ) )
-      {
+      // if the entries are in order of name, we can find the name
+      // by binary search; otherwise we look at every entry
+      boolean ordered = fileSystem.hasSortedDirectories() &&
+        indexNodeNumber == DirectoryIndex.NOT_INDEXED ;
+      indexNodeNumber = -1 ;
+      if( ordered )
+        status = searchdir( fileSystem , indexNode , name , 
+          directoryEntry , bytes ) ;
+      else
+        status = scandir( fileSystem , indexNode , name , 
+          directoryEntry , bytes ) ;
+      if( status > 0 )
         indexNodeNumber = directoryEntry.getIno() ;
-        // read the inode block
-        fileSystem.readIndexNode( nextIndexNode , indexNodeNumber ) ;
-        // we're done searching
-        break ;
-      }
-    }
-
-    // close the file since we're done with it
-    int close_status = close( fd ) ;
-    if( close_status < 0 )
-    {
-      // process.errno = ???
-      return -1 ;
     }
 
     // if we encountered an error reading, return error
@@ -1553,22 +2049,120 @@ Some internal methods.
     // if we got to the directory without finding the name, return error
     if( status == 0 )
     {
+      directoryEntryCache.put( directory , name , 
+        DirectoryEntryCache.NOT_FOUND ) ;
       process.errno = ENOENT ;
       return -1 ;
     }
 
     // return index node number if success
+    directoryEntryCache.put( directory , name , indexNodeNumber ) ;
     return indexNodeNumber ;
   }
 
-  // get the inode for a file which is expected to exist
-  private static short findIndexNode( String path , IndexNode inode )
+  /**
+   * Look for a name in a directory whose entries are in order of 
+   * name, by binary search over the entries.  Only the blocks 
+   * holding the entries compared are read.
+   * This is a convenience method.
+   * @param fileSystem the file system containing the directory
+   * @param directory the index node of the directory
+   * @param name the name to look for
+   * @param dirp the directory entry into which the entry found 
+   * should be copied
+   * @param bytes a buffer of one block into which directory blocks
+   * may be read
+   * @return the size of a DirectoryEntry if the name is found; 0 if
+   * it is not; -1 if an error occurs
+   * @exception java.lang.Exception if any underlying action causes
+   * an exception to be thrown
+   */
+  private static int searchdir( FileSystem fileSystem , 
+    IndexNode directory , String name , DirectoryEntry dirp , 
+    byte[] bytes ) throws Exception
+  {
+    int blockSize = fileSystem.getBlockSize() ;
+    int block = -1 ;
+    int low = 0 ;
+    int high = directory.getSize() / DirectoryEntry.DIRECTORY_ENTRY_SIZE - 1 ;
+    while( low <= high )
+    {
+      int middle = ( low + high ) >>> 1 ;
+      int offset = middle * DirectoryEntry.DIRECTORY_ENTRY_SIZE ;
+
+      // read the block holding the entry, unless we already have it
+      if( offset / blockSize != block )
+      {
+        block = offset / blockSize ;
+        int status = fileSystem.readFileBlock( directory , block , bytes ) ;
+        if( status < 0 )
+          return status ;
+      }
+
+      dirp.read( bytes , offset % blockSize ) ;
+      int comparison = dirp.getName().compareTo( name ) ;
+      if( comparison == 0 )
+        return DirectoryEntry.DIRECTORY_ENTRY_SIZE ;
+      if( comparison < 0 )
+        low = middle + 1 ;
+      else
+        high = middle - 1 ;
+    }
+    return 0 ;
+  }
+
+  /**
+   * Look for a name in a directory by reading each of its entries
+   * in turn.
+   * This is a convenience method.
+   * @param fileSystem the file system containing the directory
+   * @param directory the index node of the directory
+   * @param name the name to look for
+   * @param dirp the directory entry into which the entry found 
+   * should be copied
+   * @param bytes a buffer of one block into which directory blocks
+   * may be read
+   * @return the size of a DirectoryEntry if the name is found; 0 if
+   * it is not; -1 if an error occurs
+   * @exception java.lang.Exception if any underlying action causes
+   * an exception to be thrown
+   */
+  private static int scandir( FileSystem fileSystem , 
+    IndexNode directory , String name , DirectoryEntry dirp , 
+    byte[] bytes ) throws Exception
+  {
+    int blockSize = fileSystem.getBlockSize() ;
+    int size = directory.getSize() ;
+    for( int offset = 0 ; offset < size ; 
+      offset += DirectoryEntry.DIRECTORY_ENTRY_SIZE )
+    {
+      // read each block as we come to it
+      if( offset % blockSize == 0 )
+      {
+        int status = fileSystem.readFileBlock( directory , 
+          offset / blockSize , bytes ) ;
+        if( status < 0 )
+          return status ;
+      }
+
+      dirp.read( bytes , offset % blockSize ) ;
+      if( dirp.getName().equals( name ) )
+        return DirectoryEntry.DIRECTORY_ENTRY_SIZE ;
+    }
+    return 0 ;
+  }
+
+  // get the inode for a file which is expected to exist.  The
+  // index node returned is the shared instance from the index node
+  // cache; the caller must give it back with releaseIndexNode().
+  private static IndexNode findIndexNode( String path )
     throws Exception
   {
+    ProcessContext process = getProcess() ;
     // start with the root file system, root inode
     FileSystem fileSystem = openFileSystems[ ROOT_FILE_SYSTEM ] ;
-    IndexNode indexNode = getRootIndexNode( ) ;
-    short indexNodeNumber = FileSystem.ROOT_INDEX_NODE_NUMBER ;
+    IndexNode indexNode = 
+      fileSystem.getIndexNode( FileSystem.ROOT_INDEX_NODE_NUMBER ) ;
 
     // parse the path until we get to the end
     StringTokenizer st = new StringTokenizer( path , "/" ) ;
@@ -1581,31 +2175,29 @@ Some internal methods.
         if( ( indexNode.getMode() & S_IFMT ) != S_IFDIR )
         {
           // return (ENOTDIR) if a needed directory is not a directory
+          fileSystem.releaseIndexNode( indexNode ) ;
           process.errno = ENOTDIR ;
-          return -1 ;
+          return null ;
         }
 
         // check to see if it is readable by the user
         // ??? tbd
         // return (EACCES) if a needed directory is not readable
 
-        IndexNode nextIndexNode = new IndexNode() ;
         // get the next index node corresponding to the token
-        indexNodeNumber = findNextIndexNode( 
-          fileSystem , indexNode , s , nextIndexNode ) ;
+        short indexNodeNumber = findNextIndexNode( 
+          fileSystem , indexNode , s ) ;
+        fileSystem.releaseIndexNode( indexNode ) ;
         if( indexNodeNumber < 0 )
         {
           // return ENOENT
           process.errno = ENOENT ;
-          return -1 ;
+          return null ;
         }
-        indexNode = nextIndexNode ;
+        indexNode = fileSystem.getIndexNode( indexNodeNumber ) ;
       }
     }
-    // copy indexNode to inode
-    indexNode.copy( inode ) ;
-    return indexNodeNumber ;
+    return indexNode ;
   }
 
 }
-
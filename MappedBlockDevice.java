@@ -0,0 +1,113 @@
+import java.io.RandomAccessFile ;
+import java.io.IOException ;
+import java.io.EOFException ;
+import java.nio.ByteBuffer ;
+import java.nio.MappedByteBuffer ;
+import java.nio.channels.FileChannel ;
+
+/**
+ * A block device stored in a file which is mapped into memory.
+ * Reads and writes are bulk copies to and from the mapping; no seek
+ * or system call is needed, and the operating system moves the pages
+ * to and from the file.
+ * <p>
+ * A single mapping may not be larger than Integer.MAX_VALUE bytes, so
+ * the file is mapped as a series of segments of SEGMENT_SIZE bytes
+ * each.  A read or write which crosses the end of a segment is split
+ * between the two segments.
+ */
+public class MappedBlockDevice implements BlockDevice
+{
+  /**
+   * The number of bytes mapped by each segment.
+   */
+  public static final int SEGMENT_SIZE = 1 << 30 ;
+
+  private RandomAccessFile file = null ;
+  private MappedByteBuffer[] segments = null ;
+  private long size = 0 ;
+
+  /**
+   * Construct a block device and map its backing file.
+   * @param filename the name of the backing file
+   * @param mode the mode ("r" or "rw") to use when opening the file
+   * @exception java.io.IOException if the file cannot be opened or
+   * mapped
+   */
+  public MappedBlockDevice( String filename , String mode )
+    throws IOException
+  {
+    super() ;
+    file = new RandomAccessFile( filename , mode ) ;
+    FileChannel channel = file.getChannel() ;
+    FileChannel.MapMode mapMode = mode.equals( "r" ) ?
+      FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE ;
+    size = channel.size() ;
+    int count = (int)( ( size + SEGMENT_SIZE - 1 ) / SEGMENT_SIZE ) ;
+    segments = new MappedByteBuffer[count] ;
+    for( int i = 0 ; i < count ; i ++ )
+    {
+      long start = (long)i * SEGMENT_SIZE ;
+      segments[i] = channel.map( mapMode , start ,
+        Math.min( SEGMENT_SIZE , size - start ) ) ;
+    }
+  }
+
+  public void read( byte[] bytes , long position ) throws IOException
+  {
+    if( position < 0 || position + bytes.length > size )
+      throw new EOFException() ;
+    int done = 0 ;
+    while( done < bytes.length )
+    {
+      ByteBuffer segment = segment( position + done ) ;
+      int length = Math.min( bytes.length - done , segment.remaining() ) ;
+      segment.get( bytes , done , length ) ;
+      done += length ;
+    }
+  }
+
+  public void write( byte[] bytes , long position ) throws IOException
+  {
+    if( position < 0 || position + bytes.length > size )
+      throw new EOFException() ;
+    int done = 0 ;
+    while( done < bytes.length )
+    {
+      ByteBuffer segment = segment( position + done ) ;
+      int length = Math.min( bytes.length - done , segment.remaining() ) ;
+      segment.put( bytes , done , length ) ;
+      done += length ;
+    }
+  }
+
+  /**
+   * Force the changes made to every segment out to the file.
+   */
+  public void force()
+  {
+    for( int i = 0 ; i < segments.length ; i ++ )
+      segments[i].force() ;
+  }
+
+  public void close() throws IOException
+  {
+    file.close() ;
+  }
+
+  /**
+   * Get a view of the segment containing the specified position,
+   * positioned there.  A view is used so that concurrent reads and
+   * writes do not disturb one another's positions.
+   * This is a convenience method.
+   * @param position the byte position on the device
+   * @return the positioned view
+   */
+  private ByteBuffer segment( long position )
+  {
+    ByteBuffer view = segments[(int)( position / SEGMENT_SIZE )].duplicate() ;
+    view.position( (int)( position % SEGMENT_SIZE ) ) ;
+    return view ;
+  }
+
+}
@@ -0,0 +1,76 @@
+import java.io.RandomAccessFile ;
+import java.io.IOException ;
+import java.io.EOFException ;
+
+/**
+ * A block device held entirely in memory (a RAM disk).  
+ * <p>
+ * The device may be created empty, or loaded from an existing file 
+ * system file.  Once loaded, the file is never read or written again;
+ * any changes made to the device are lost when it is closed.
+ */
+public class MemoryBlockDevice implements BlockDevice
+{
+  private byte[] bytes = null ;
+  private boolean readOnly = false ;
+
+  /**
+   * Construct an empty block device of the given size.
+   * @param size the size of the device in bytes
+   */
+  public MemoryBlockDevice( int size )
+  {
+    super() ;
+    bytes = new byte[size] ;
+  }
+
+  /**
+   * Construct a block device holding a copy of a file.
+   * @param filename the name of the file to copy into memory
+   * @param mode the mode ("r" or "rw") in which the device is used
+   * @exception java.io.IOException if the file cannot be read or is 
+   * larger than Integer.MAX_VALUE bytes
+   */
+  public MemoryBlockDevice( String filename , String mode )
+    throws IOException
+  {
+    super() ;
+    RandomAccessFile file = new RandomAccessFile( filename , "r" ) ;
+    if( file.length() > Integer.MAX_VALUE )
+    {
+      file.close() ;
+      throw new IOException( "file too large for memory: " + filename ) ;
+    }
+    bytes = new byte[(int)file.length()] ;
+    file.readFully( bytes ) ;
+    file.close() ;
+    readOnly = mode.equals( "r" ) ;
+  }
+
+  public void read( byte[] buffer , long position ) throws IOException
+  {
+    if( position < 0 || position + buffer.length > bytes.length )
+      throw new EOFException() ;
+    System.arraycopy( bytes , (int)position , buffer , 0 , buffer.length ) ;
+  }
+
+  public void write( byte[] buffer , long position ) throws IOException
+  {
+    if( readOnly )
+      throw new IOException( "read-only device" ) ;
+    if( position < 0 || position + buffer.length > bytes.length )
+      throw new EOFException() ;
+    System.arraycopy( buffer , 0 , bytes , (int)position , buffer.length ) ;
+  }
+
+  public void force()
+  {
+    // nothing to do; the device is only in memory
+  }
+
+  public void close()
+  {
+    bytes = null ;
+  }
+
+}
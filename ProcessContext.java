@@ -62,12 +62,18 @@ public class ProcessContext
   public static int MAX_OPEN_FILES = 0 ;
 
   /**
-   * The array of file descriptors for open files.
+   * The table of file descriptors for open files.
    * The integer file descriptors for kernel method calls
-   * are indexes into this array. 
+   * are slot numbers in this table. 
    */
-  public FileDescriptor[] openFiles = 
-    new FileDescriptor[MAX_OPEN_FILES] ;
+  public FileDescriptorTable openFiles = 
+    new FileDescriptorTable( MAX_OPEN_FILES ) ;
+
+  /**
+   * True if the process was started by a ProcessScheduler, in which
+   * case exit() ends only the process and not the simulation.
+   */
+  private boolean scheduled = false ;
 
   /**
    * Construct a process context.  By default, uid=1, gid=1, dir="/root",
@@ -155,6 +161,16 @@ public class ProcessContext
     return umask ;
   }
 
+  public void setScheduled( boolean newScheduled )
+  {
+    scheduled = newScheduled ;
+  }
+
+  public boolean isScheduled()
+  {
+    return scheduled ;
+  }
+
   // ??? toString()
 
 }
@@ -0,0 +1,224 @@
+import java.lang.reflect.InvocationTargetException ;
+import java.lang.reflect.Method ;
+import java.util.concurrent.Callable ;
+import java.util.concurrent.ExecutorService ;
+import java.util.concurrent.Executors ;
+import java.util.concurrent.Future ;
+import java.util.concurrent.ThreadFactory ;
+import java.util.concurrent.TimeUnit ;
+
+/**
+ * Runs simulated processes, each on a thread of its own.  A process
+ * runs the main method of a program such as cat, ls or cp, as if the
+ * program had been started with "java", but inside the kernel of the
+ * program which started it, sharing its file systems and caches.
+ * <p>
+ * Where the Java runtime has virtual threads, each process runs on a
+ * virtual thread of its own, so that tens of thousands of processes
+ * may run at once, and a process waiting for a block to be read
+ * gives up its carrier thread to another.  Otherwise processes run
+ * on a pool of ordinary threads, and wait their turn when every
+ * thread of the pool is busy.
+ * <p>
+ * When a process calls Kernel.exit(), its open files are closed and
+ * its thread ends, but the simulation goes on.  The program which
+ * started the processes ends the simulation with Kernel.exit() as
+ * usual.
+ */
+public class ProcessScheduler
+{
+  /**
+   * The number of threads in the pool used when virtual threads are
+   * not available, if no number is given.
+   */
+  public static final int DEFAULT_THREADS = 64 ;
+
+  /**
+   * Exit status of a process whose program fails with an exception.
+   */
+  public static final int EXIT_FAILURE = 1 ;
+
+  /**
+   * The executor on which processes run.
+   */
+  private ExecutorService executor = null ;
+
+  /**
+   * True if each process runs on a virtual thread.
+   */
+  private boolean virtual = false ;
+
+  /**
+   * Thrown by Kernel.exit() to end the thread of a process run by a
+   * ProcessScheduler.  It is an Error rather than an Exception so
+   * that a program which catches Exception doesn't carry on after
+   * calling exit().
+   */
+  public static class ProcessExit extends Error
+  {
+    private static final long serialVersionUID = 1L ;
+
+    /**
+     * The exit status of the process.
+     */
+    private int status = 0 ;
+
+    /**
+     * Creates an exit for a process.
+     * @param newStatus the exit status of the process
+     */
+    public ProcessExit( int newStatus )
+    {
+      super( "exit " + newStatus , null , false , false ) ;
+      status = newStatus ;
+    }
+
+    public int getStatus()
+    {
+      return status ;
+    }
+  }
+
+  /**
+   * Creates a scheduler which runs processes on virtual threads if
+   * it can, and otherwise on a pool of DEFAULT_THREADS threads.
+   */
+  public ProcessScheduler()
+  {
+    this( DEFAULT_THREADS ) ;
+  }
+
+  /**
+   * Creates a scheduler which runs processes on virtual threads if
+   * it can, and otherwise on a pool of threads.
+   * @param threads the number of threads in the pool used if virtual
+   * threads are not available
+   */
+  public ProcessScheduler( int threads )
+  {
+    super() ;
+
+    // virtual threads are looked for by name, so that the simulator
+    // still builds and runs on releases of Java which don't have them
+    try
+    {
+      Method method = Executors.class.getMethod(
+        "newVirtualThreadPerTaskExecutor" ) ;
+      executor = (ExecutorService)method.invoke( null ) ;
+      virtual = true ;
+    }
+    catch( ReflectiveOperationException e )
+    {
+      executor = Executors.newFixedThreadPool( threads ,
+        new ThreadFactory()
+        {
+          public Thread newThread( Runnable runnable )
+          {
+            Thread thread = new Thread( runnable , "process" ) ;
+            thread.setDaemon( true ) ;
+            return thread ;
+          }
+        } ) ;
+    }
+  }
+
+  /**
+   * Tells whether processes run on virtual threads.
+   * @return true if each process has a virtual thread; false if
+   * processes share a pool of ordinary threads
+   */
+  public boolean isVirtual()
+  {
+    return virtual ;
+  }
+
+  /**
+   * Start a process which runs a program.  The process is created
+   * with Kernel.fork(), so it has the uid, gid, working directory and
+   * umask of the calling process, which must itself be a process
+   * (usually the one created by Kernel.initialize()).
+   * @param programName the name of the class whose main method the
+   * process runs, such as "cat"
+   * @param argv the arguments to pass to main
+   * @return the exit status of the process, once it has ended
+   * @exception java.lang.Exception if the program can't be found or
+   * has no main method
+   */
+  public Future<Integer> exec( String programName , final String[] argv )
+    throws Exception
+  {
+    final Method main =
+      Class.forName( programName ).getMethod( "main" , String[].class ) ;
+    final ProcessContext process = Kernel.fork() ;
+    process.setScheduled( true ) ;
+    return executor.submit( new Callable<Integer>()
+    {
+      public Integer call() throws Exception
+      {
+        return run( process , main , argv ) ;
+      }
+    } ) ;
+  }
+
+  /**
+   * Wait for every process which has been started to end, and start
+   * no more.
+   * @exception java.lang.InterruptedException if the calling thread
+   * is interrupted while waiting
+   */
+  public void shutdown() throws InterruptedException
+  {
+    executor.shutdown() ;
+    while( ! executor.awaitTermination( 1 , TimeUnit.MINUTES ) )
+      ;
+  }
+
+  /**
+   * Run a program as a process on the calling thread, until it calls
+   * Kernel.exit() or returns.  This is a convenience method.
+   * @param process the process
+   * @param main the main method of the program
+   * @param argv the arguments to pass to main
+   * @return the exit status of the process
+   * @exception java.lang.Exception if the program fails with an
+   * exception
+   */
+  private static Integer run( ProcessContext process , Method main ,
+    String[] argv ) throws Exception
+  {
+    Kernel.attach( process ) ;
+    try
+    {
+      main.invoke( null , new Object[] { argv } ) ;
+
+      // the program returned without calling exit()
+      Kernel.exit( 0 ) ;
+    }
+    catch( ProcessExit e )
+    {
+      return e.getStatus() ;
+    }
+    catch( InvocationTargetException e )
+    {
+      Throwable cause = e.getCause() ;
+      if( cause instanceof ProcessExit )
+        return ( (ProcessExit)cause ).getStatus() ;
+
+      // the program failed; close its files before passing the
+      // failure on to whoever is waiting for the process
+      try
+      {
+        if( Kernel.getProcess() != null )
+          Kernel.exit( EXIT_FAILURE ) ;
+      }
+      catch( ProcessExit exit )
+      {
+      }
+      if( cause instanceof Exception )
+        throw (Exception)cause ;
+      throw e ;
+    }
+    return 0 ;
+  }
+
+}
@@ -0,0 +1,112 @@
+/**
+ * This simulates the unix struct "statfs", which describes the
+ * size and free space of a mounted file system.
+ */
+public class StatFs
+{
+
+  public int f_bsize = 0 ;
+
+  public int f_blocks = 0 ;
+
+  public int f_bfree = 0 ;
+
+  public int f_bavail = 0 ;
+
+  /**
+   * The number of blocks which have been freed, and are counted in
+   * f_bfree, but are still waiting to be released for reuse.
+   */
+  public int f_bpending = 0 ;
+
+  public int f_files = 0 ;
+
+  public int f_ffree = 0 ;
+
+  public void setBsize( int newBsize )
+  {
+    f_bsize = newBsize ;
+  }
+
+  public int getBsize()
+  {
+    return f_bsize ;
+  }
+
+  public void setBlocks( int newBlocks )
+  {
+    f_blocks = newBlocks ;
+  }
+
+  public int getBlocks()
+  {
+    return f_blocks ;
+  }
+
+  public void setBfree( int newBfree )
+  {
+    f_bfree = newBfree ;
+  }
+
+  public int getBfree()
+  {
+    return f_bfree ;
+  }
+
+  public void setBavail( int newBavail )
+  {
+    f_bavail = newBavail ;
+  }
+
+  public int getBavail()
+  {
+    return f_bavail ;
+  }
+
+  public void setBpending( int newBpending )
+  {
+    f_bpending = newBpending ;
+  }
+
+  public int getBpending()
+  {
+    return f_bpending ;
+  }
+
+  public void setFiles( int newFiles )
+  {
+    f_files = newFiles ;
+  }
+
+  public int getFiles()
+  {
+    return f_files ;
+  }
+
+  public void setFfree( int newFfree )
+  {
+    f_ffree = newFfree ;
+  }
+
+  public int getFfree()
+  {
+    return f_ffree ;
+  }
+
+  /**
+   * Copy the size and free counts of a file system.  The counts are
+   * kept by the file system as blocks and index nodes are allocated
+   * and freed, so this takes the same time however large it is.
+   * @param fileSystem the file system
+   */
+  public void copyFileSystem( FileSystem fileSystem )
+  {
+    f_bsize = fileSystem.getBlockSize() ;
+    f_blocks = fileSystem.getDataBlockCount() ;
+    f_bfree = fileSystem.getFreeBlockCount() ;
+    f_bavail = f_bfree ;
+    f_bpending = fileSystem.getPendingBlockCount() ;
+    f_files = fileSystem.getIndexNodeCount() ;
+    f_ffree = fileSystem.getFreeIndexNodeCount() ;
+  }
+}
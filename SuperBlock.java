@@ -2,7 +2,6 @@
  * $Id: SuperBlock.java,v 1.9 2001/10/07 23:48:55 rayo Exp $
  */
 
-import java.io.RandomAccessFile ;
 import java.io.IOException ;
 import java.util.*;
 
@@ -37,6 +36,57 @@ import java.util.*;
 public class SuperBlock 
 {
 
+  /**
+   * The original on-disk format.  Block addresses in index nodes
+   * are stored in 3 bytes, so a file system may have no more than
+   * 2<sup>24</sup> - 1 blocks.  Images in this format have zero in the
+   * bytes where later formats store the format version.
+   */
+  public static final int FORMAT_3_BYTE_ADDRESSES = 0 ;
+
+  /**
+   * An on-disk format in which block addresses in index nodes are
+   * stored in 4 bytes, so a file system may have up to 
+   * Integer.MAX_VALUE blocks.
+   */
+  public static final int FORMAT_4_BYTE_ADDRESSES = 1 ;
+
+  /**
+   * An on-disk format in which the blocks of each file are mapped by
+   * an extent tree (see ExtentNode) rather than by direct and 
+   * indirect block addresses.  Other block addresses are stored in 
+   * 4 bytes, as in FORMAT_4_BYTE_ADDRESSES.
+   */
+  public static final int FORMAT_EXTENTS = 2 ;
+
+  /**
+   * The format used for new file systems unless another is requested.
+   */
+  public static final int CURRENT_FORMAT = FORMAT_4_BYTE_ADDRESSES ;
+
+  /**
+   * The highest format version which is understood.
+   */
+  public static final int LATEST_FORMAT = FORMAT_EXTENTS ;
+
+  /**
+   * A flag which is set if the entries of every directory in the 
+   * file system are kept in order of name, so that a name may be
+   * found by binary search.  Images made before this flag was added
+   * don't have it, and their directories are searched from the
+   * beginning.
+   */
+  public static final int FLAG_SORTED_DIRECTORIES = 0x0001 ;
+
+  /**
+   * A flag which is set if the free block and free inode counts in
+   * the superblock agree with the free list and inode bitmap.  It is
+   * cleared on disk before either bitmap is changed, and set again
+   * once both have been written, so that after a crash the counts 
+   * are recomputed from the bitmaps.
+   */
+  public static final int FLAG_FREE_COUNTS_VALID = 0x0002 ;
+
   /**
    * Size of each block in the file system.
    */
@@ -53,6 +103,14 @@ public class SuperBlock
    */
   private int freeListBlockOffset ;
 
+  /**
+   * Offset in blocks of the inode bitmap block region from the 
+   * beginning of the file system; zero if the file system has no
+   * inode bitmap, as in images made before it was added.  The region
+   * lies between the free list and the inodes.
+   */
+  private int inodeBitmapBlockOffset ;
+
   /**
    * Offset in blocks of the inode block region from the beginning 
    * of the file system.
@@ -65,6 +123,28 @@ public class SuperBlock
    */
   private int dataBlockOffset ;
 
+  /**
+   * The on-disk format version of the file system.
+   */
+  private int formatVersion ;
+
+  /**
+   * The FLAG_ constants which are set for the file system.
+   */
+  private int flags ;
+
+  /**
+   * The number of free data blocks; only meaningful if 
+   * FLAG_FREE_COUNTS_VALID is set.
+   */
+  private int freeBlockCount ;
+
+  /**
+   * The number of free index nodes; only meaningful if
+   * FLAG_FREE_COUNTS_VALID is set.
+   */
+  private int freeIndexNodeCount ;
+
   /**
    * Construct a SuperBlock.
    */
@@ -111,6 +191,26 @@ public class SuperBlock
     return freeListBlockOffset ;
   }
 
+  /**
+   * Set the inodeBitmapBlockOffset (in blocks)
+   * @param newInodeBitmapBlockOffset the new offset in blocks; zero
+   * if there is no inode bitmap
+   */
+  public void setInodeBitmapBlockOffset( int newInodeBitmapBlockOffset )
+  {
+    inodeBitmapBlockOffset = newInodeBitmapBlockOffset ;
+  }
+
+  /**
+   * Get the inode bitmap block offset (in blocks)
+   * @return the inode bitmap block offset in blocks; zero if there
+   * is no inode bitmap
+   */
+  public int getInodeBitmapBlockOffset()
+  {
+    return inodeBitmapBlockOffset ;
+  }
+
   /**
    * Set the inodeBlockOffset (in blocks)
    * @param newInodeBlockOffset the new offset in blocks
@@ -148,30 +248,131 @@ public class SuperBlock
   }
 
   /**
-   * writes this SuperBlock at the current position of the specified file.
+   * Set the on-disk format version.
+   * @param newFormatVersion the format version; one of the FORMAT_ 
+   * constants
    */
-  public void write( RandomAccessFile file ) throws IOException
+  public void setFormatVersion( int newFormatVersion )
   {
-    file.writeShort( blockSize ) ;
-    file.writeInt( blocks ) ;
-    file.writeInt( freeListBlockOffset) ;
-    file.writeInt( inodeBlockOffset ) ;
-    file.writeInt( dataBlockOffset ) ;
-    for( int i = 0 ; i < blockSize - 18 ; i ++ )
-      file.write( (byte) 0 ) ;
+    formatVersion = newFormatVersion ;
   }
 
   /**
-   * reads this SuperBlock at the current position of the specified file.
+   * Get the on-disk format version.
+   * @return the format version
    */
-  public void read( RandomAccessFile file ) throws IOException
+  public int getFormatVersion()
+  {
+    return formatVersion ;
+  }
+
+  /**
+   * Set the flags.
+   * @param newFlags the FLAG_ constants to be set, or'ed together
+   */
+  public void setFlags( int newFlags )
+  {
+    flags = newFlags ;
+  }
+
+  /**
+   * Get the flags.
+   * @return the FLAG_ constants which are set, or'ed together
+   */
+  public int getFlags()
+  {
+    return flags ;
+  }
+
+  public void setFreeBlockCount( int newFreeBlockCount )
+  {
+    freeBlockCount = newFreeBlockCount ;
+  }
+
+  public int getFreeBlockCount()
+  {
+    return freeBlockCount ;
+  }
+
+  public void setFreeIndexNodeCount( int newFreeIndexNodeCount )
+  {
+    freeIndexNodeCount = newFreeIndexNodeCount ;
+  }
+
+  public int getFreeIndexNodeCount()
+  {
+    return freeIndexNodeCount ;
+  }
+
+  /**
+   * writes this SuperBlock to the first block of the specified device.
+   */
+  public void write( BlockDevice device ) throws IOException
+  {
+    byte[] buffer = new byte[blockSize] ;
+    writeShort( buffer , 0 , blockSize ) ;
+    writeInt( buffer , 2 , blocks ) ;
+    writeInt( buffer , 6 , freeListBlockOffset ) ;
+    writeInt( buffer , 10 , inodeBlockOffset ) ;
+    writeInt( buffer , 14 , dataBlockOffset ) ;
+    writeInt( buffer , 18 , formatVersion ) ;
+    writeInt( buffer , 22 , inodeBitmapBlockOffset ) ;
+    writeInt( buffer , 26 , flags ) ;
+    writeInt( buffer , 30 , freeBlockCount ) ;
+    writeInt( buffer , 34 , freeIndexNodeCount ) ;
+    device.write( buffer , 0 ) ;
+  }
+
+  /**
+   * reads this SuperBlock from the first block of the specified device.
+   */
+  public void read( BlockDevice device ) throws IOException
+  {
+    // the block size is at the very start of the superblock, so we
+    // read it first to find out how big the rest of the block is
+    byte[] buffer = new byte[2] ;
+    device.read( buffer , 0 ) ;
+    blockSize = readShort( buffer , 0 ) ;
+
+    buffer = new byte[blockSize] ;
+    device.read( buffer , 0 ) ;
+    blocks = readInt( buffer , 2 ) ;
+    freeListBlockOffset = readInt( buffer , 6 ) ;
+    inodeBlockOffset = readInt( buffer , 10 ) ;
+    dataBlockOffset = readInt( buffer , 14 ) ;
+    formatVersion = readInt( buffer , 18 ) ;
+    inodeBitmapBlockOffset = readInt( buffer , 22 ) ;
+    flags = readInt( buffer , 26 ) ;
+    freeBlockCount = readInt( buffer , 30 ) ;
+    freeIndexNodeCount = readInt( buffer , 34 ) ;
+  }
+
+  private static void writeShort( byte[] buffer , int offset , short value )
+  {
+    buffer[offset] = (byte)( value >>> 8 ) ;
+    buffer[offset+1] = (byte)value ;
+  }
+
+  private static short readShort( byte[] buffer , int offset )
+  {
+    return (short)( ( buffer[offset] & 0xff ) << 8 | 
+      ( buffer[offset+1] & 0xff ) ) ;
+  }
+
+  private static void writeInt( byte[] buffer , int offset , int value )
+  {
+    buffer[offset]   = (byte)( value >>> 24 ) ;
+    buffer[offset+1] = (byte)( value >>> 16 ) ;
+    buffer[offset+2] = (byte)( value >>> 8 ) ;
+    buffer[offset+3] = (byte)value ;
+  }
+
+  private static int readInt( byte[] buffer , int offset )
   {
-    blockSize = file.readShort() ;
-    blocks = file.readInt() ;
-    freeListBlockOffset = file.readInt() ;
-    inodeBlockOffset = file.readInt() ;
-    dataBlockOffset = file.readInt() ;
-    file.skipBytes( blockSize - 18 ) ;
+    return ( buffer[offset] & 0xff ) << 24 | 
+      ( buffer[offset+1] & 0xff ) << 16 |
+      ( buffer[offset+2] & 0xff ) << 8 | 
+      ( buffer[offset+3] & 0xff ) ;
   }
 
 }
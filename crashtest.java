@@ -0,0 +1,171 @@
+/**
+ * A test that a simulated file system which stops without being
+ * synced never has blocks which belong to a file marked free.  It
+ * runs in two steps.  The first writes a file, then writes and reads
+ * a scratch file large enough to push the file's blocks out of the
+ * block cache, and halts without syncing.  The second mounts the
+ * file system again, writes a second file, and checks that the first
+ * file is still intact, so that none of its blocks were given to the
+ * second.
+ * <p>
+ * Usage:
+ * <pre>
+ *   java crashtest write <i>file-name</i>
+ *   java crashtest check <i>file-name</i> <i>other-file-name</i>
+ * </pre>
+ * where the files do not exist yet.
+ */
+public class crashtest
+{
+  /**
+   * The name of this program.
+   * This is the program name that is used
+   * when displaying error messages.
+   */
+  public static String PROGRAM_NAME = "crashtest" ;
+
+  /**
+   * The number of blocks in each file.
+   */
+  public static final int FILE_BLOCKS = 20 ;
+
+  /**
+   * The number of blocks in the scratch file, which should be more
+   * than the block cache holds.
+   */
+  public static final int SCRATCH_BLOCKS = 256 ;
+
+  /**
+   * Writes, or checks, the files given as command line arguments.
+   * @exception java.lang.Exception if an exception is thrown
+   * by an underlying operation
+   */
+  public static void main( String[] args ) throws Exception
+  {
+    // initialize the file system simulator kernel
+    Kernel.initialize() ;
+
+    // print a helpful message if the wrong arguments are given
+    if( ! ( args.length == 2 && args[0].equals( "write" ) ) &&
+      ! ( args.length == 3 && args[0].equals( "check" ) ) )
+    {
+      System.err.println( PROGRAM_NAME + ": usage: java " +
+        PROGRAM_NAME + " write file-name" ) ;
+      System.err.println( PROGRAM_NAME + ": usage: java " +
+        PROGRAM_NAME + " check file-name other-file-name" ) ;
+      Kernel.exit( 1 ) ;
+    }
+    int blockSize =
+      Kernel.openFileSystems[Kernel.ROOT_FILE_SYSTEM].getBlockSize() ;
+
+    if( args[0].equals( "write" ) )
+    {
+      // write the file, and push it out of the cache with a scratch
+      // file, then stop as if the power had failed
+      writeFile( args[1] , (byte)'F' , FILE_BLOCKS * blockSize ) ;
+      String scratch = args[1] + ".scratch" ;
+      writeFile( scratch , (byte)'S' , SCRATCH_BLOCKS * blockSize ) ;
+      readFile( scratch , (byte)'S' , SCRATCH_BLOCKS * blockSize ) ;
+      Runtime.getRuntime().halt( 0 ) ;
+    }
+
+    // write another file, which must not be given any block of the
+    // first, and check that the first is unchanged
+    writeFile( args[2] , (byte)'G' , FILE_BLOCKS * blockSize ) ;
+    int failures = readFile( args[1] , (byte)'F' , FILE_BLOCKS * blockSize ) ;
+    Stat stat = new Stat() ;
+    Stat otherStat = new Stat() ;
+    if( Kernel.stat( args[1] , stat ) < 0 ||
+      Kernel.stat( args[2] , otherStat ) < 0 )
+    {
+      Kernel.perror( PROGRAM_NAME ) ;
+      Kernel.exit( 2 ) ;
+    }
+    if( stat.getIno() == otherStat.getIno() )
+    {
+      System.out.println( PROGRAM_NAME + ": " + args[1] + " and " +
+        args[2] + " have the same index node" ) ;
+      failures ++ ;
+    }
+    if( failures > 0 )
+    {
+      System.out.println( PROGRAM_NAME + ": " + failures + " failures" ) ;
+      Kernel.exit( 3 ) ;
+    }
+    System.out.println( PROGRAM_NAME + ": ok" ) ;
+    Kernel.exit( 0 ) ;
+  }
+
+  /**
+   * Make a file filled with one byte, or exit if it can't be written.
+   * @param name the name of the file
+   * @param fill the byte with which to fill the file
+   * @param size the size of the file in bytes
+   * @exception java.lang.Exception if an exception is thrown
+   * by an underlying operation
+   */
+  private static void writeFile( String name , byte fill , int size )
+    throws Exception
+  {
+    int fd = Kernel.creat( name , (short)0644 ) ;
+    if( fd < 0 )
+    {
+      Kernel.perror( PROGRAM_NAME ) ;
+      Kernel.exit( 2 ) ;
+    }
+    byte[] bytes = new byte[4096] ;
+    java.util.Arrays.fill( bytes , fill ) ;
+    for( int written = 0 ; written < size ; written += bytes.length )
+      if( Kernel.write( fd , bytes ,
+        Math.min( bytes.length , size - written ) ) < 0 )
+      {
+        Kernel.perror( PROGRAM_NAME ) ;
+        Kernel.exit( 2 ) ;
+      }
+    Kernel.close( fd ) ;
+  }
+
+  /**
+   * Read a file and check that it is filled with one byte.
+   * @param name the name of the file
+   * @param fill the byte with which the file should be filled
+   * @param size the size the file should be in bytes
+   * @return the number of checks which failed
+   * @exception java.lang.Exception if an exception is thrown
+   * by an underlying operation
+   */
+  private static int readFile( String name , byte fill , int size )
+    throws Exception
+  {
+    int fd = Kernel.open( name , Kernel.O_RDONLY ) ;
+    if( fd < 0 )
+    {
+      Kernel.perror( PROGRAM_NAME ) ;
+      Kernel.exit( 2 ) ;
+    }
+    byte[] bytes = new byte[4096] ;
+    int total = 0 ;
+    int count ;
+    while( ( count = Kernel.read( fd , bytes , bytes.length ) ) > 0 )
+    {
+      for( int i = 0 ; i < count ; i ++ )
+        if( bytes[i] != fill )
+        {
+          System.out.println( PROGRAM_NAME + ": " + name +
+            " has the wrong byte at offset " + ( total + i ) ) ;
+          Kernel.close( fd ) ;
+          return 1 ;
+        }
+      total += count ;
+    }
+    Kernel.close( fd ) ;
+    if( total != size )
+    {
+      System.out.println( PROGRAM_NAME + ": " + name + " has " + total +
+        " bytes, not " + size ) ;
+      return 1 ;
+    }
+    return 0 ;
+  }
+
+}
@@ -0,0 +1,111 @@
+/**
+ * A df for a simulated file system.  For each path name given, or
+ * for "/" if none is given, prints the block size, the number of
+ * data blocks and how many are used and free, how many of the free
+ * blocks are waiting to be released, and the number of index nodes
+ * and how many are free, for the file system holding it.
+ * <p>
+ * Usage:
+ * <pre>
+ *   java df [<i>path-name</i> ...]
+ * </pre>
+ */
+public class df
+{
+  /**
+   * The name of this program.  
+   * This is the program name that is used 
+   * when displaying error messages.
+   */
+  public static String PROGRAM_NAME = "df" ;
+
+  /**
+   * Prints free space information for named files.
+   * @exception java.lang.Exception if an exception is thrown
+   * by an underlying operation
+   */
+  public static void main( String[] args ) throws Exception
+  {
+    // initialize the file system simulator kernel
+    Kernel.initialize() ;
+
+    // with no arguments, describe the root file system
+    if( args.length == 0 )
+      args = new String[] { "/" } ;
+
+    // print a heading
+    System.out.println( " bsize     blocks       used       free" +
+      "    pending use%     inodes      ifree path" ) ;
+
+    // for each path-name given
+    for( int i = 0 ; i < args.length ; i ++ )
+    {
+      String name = args[i] ; 
+
+      // call statfs() to get the file system information
+      StatFs statFs = new StatFs() ;
+      int status = Kernel.statfs( name , statFs ) ;
+      if( status < 0 )
+      {
+        Kernel.perror( PROGRAM_NAME ) ;
+        System.err.println( PROGRAM_NAME + ": \"" + name + "\"" ) ;
+        Kernel.exit( 1 ) ;
+      }
+
+      // print the information
+      print( name , statFs ) ;
+    }
+
+    // exit with success if we process all the arguments
+    Kernel.exit( 0 ) ;
+  }
+
+  /**
+   * Print the information for a particular file system.
+   * This is a convenience method.
+   * @param name the name to print
+   * @param statFs the statfs containing the file system's information
+   */
+  private static void print( String name , StatFs statFs )
+  {
+    // a buffer to fill with a line of output
+    StringBuffer s = new StringBuffer() ;
+
+    int used = statFs.getBlocks() - statFs.getBfree() ;
+    int percent = 0 ;
+    if( statFs.getBlocks() > 0 )
+      percent = (int)( ( used * 100L + statFs.getBlocks() - 1 ) / 
+        statFs.getBlocks() ) ;
+
+    append( s , statFs.getBsize() , 6 ) ;
+    append( s , statFs.getBlocks() , 11 ) ;
+    append( s , used , 11 ) ;
+    append( s , statFs.getBfree() , 11 ) ;
+    append( s , statFs.getBpending() , 11 ) ;
+    append( s , percent , 4 ) ;
+    s.append( '%' ) ;
+    append( s , statFs.getFiles() , 11 ) ;
+    append( s , statFs.getFfree() , 11 ) ;
+    s.append( ' ' ) ;
+    s.append( name ) ;
+
+    // print the buffer
+    System.out.println( s.toString() ) ;
+  }
+
+  /**
+   * Append a number right-aligned in a field.
+   * This is a convenience method.
+   * @param s the buffer to which the number should be appended
+   * @param n the number
+   * @param width the width of the field
+   */
+  private static void append( StringBuffer s , int n , int width )
+  {
+    String t = Integer.toString( n ) ;
+    for( int i = 0 ; i < width - t.length() ; i ++ )
+      s.append( ' ' ) ;
+    s.append( t ) ;
+  }
+
+}
@@ -0,0 +1,181 @@
+/**
+ * A test of directories in a simulated file system.  It makes a new
+ * directory holding a small directory of a few files, and fills the
+ * new directory with enough files to give it a hashed index and to
+ * make the index move further along the file.  In each directory it
+ * renames entries in place, once with writedir() and once with 
+ * write(), to names which are out of order in a file system with
+ * sorted directories, and checks that each new name is found and 
+ * each old name isn't.  The directory entry cache is turned off, so
+ * that every name is looked up in the directory itself.
+ * <p>
+ * Usage:
+ * <pre>
+ *   java dirtest <i>directory-name</i>
+ * </pre>
+ * where the directory does not exist yet.
+ */
+public class dirtest
+{
+  /**
+   * The name of this program.
+   * This is the program name that is used
+   * when displaying error messages.
+   */
+  public static String PROGRAM_NAME = "dirtest" ;
+
+  /**
+   * Makes and checks the directory given as a command line argument.
+   * @exception java.lang.Exception if an exception is thrown
+   * by an underlying operation
+   */
+  public static void main( String[] args ) throws Exception
+  {
+    // initialize the file system simulator kernel
+    Kernel.initialize() ;
+
+    // print a helpful message if the wrong arguments are given
+    if( args.length != 1 )
+    {
+      System.err.println( PROGRAM_NAME + ": usage: java " +
+        PROGRAM_NAME + " directory-name" ) ;
+      Kernel.exit( 1 ) ;
+    }
+    String dirname = args[0].endsWith( "/" ) ? args[0] : args[0] + "/" ;
+    FileSystem fileSystem =
+      Kernel.openFileSystems[Kernel.ROOT_FILE_SYSTEM] ;
+    int threshold = fileSystem.getDirectoryIndexThreshold() ;
+    fileSystem.getDirectoryEntryCache().setCapacity( 0 ) ;
+
+    // make the directories, and a few files in the small one
+    makeDirectory( args[0] ) ;
+    makeDirectory( dirname + "small" ) ;
+    for( int i = 0 ; i < 5 ; i ++ )
+      makeFile( dirname + "small/" + (char)( 'a' + i ) ) ;
+
+    // make enough files in the large directory that it is indexed,
+    // and its entries grow past a power of two blocks, so that the
+    // index is moved and rebuilt at least once
+    if( threshold > 0 )
+      for( int i = 0 ; i < 2 * threshold + 44 ; i ++ )
+        makeFile( dirname + "dix" + i ) ;
+
+    int failures = 0 ;
+    failures += rename( dirname + "small/" , "b" , "zz" , false ) ;
+    failures += rename( dirname + "small/" , "c" , "zy" , true ) ;
+    if( threshold > 0 )
+    {
+      failures += rename( dirname , "dix3" , "dix2z" , false ) ;
+      failures += rename( dirname , "dix4" , "dix3z" , true ) ;
+    }
+    if( failures > 0 )
+    {
+      System.out.println( PROGRAM_NAME + ": " + failures + " failures" ) ;
+      Kernel.exit( 3 ) ;
+    }
+    System.out.println( PROGRAM_NAME + ": ok" ) ;
+    Kernel.exit( 0 ) ;
+  }
+
+  /**
+   * Make a directory, or exit if it can't be made.
+   * @param name the name of the directory
+   * @exception java.lang.Exception if an exception is thrown
+   * by an underlying operation
+   */
+  private static void makeDirectory( String name ) throws Exception
+  {
+    int fd = Kernel.creat( name , Kernel.S_IFDIR ) ;
+    if( fd < 0 )
+    {
+      Kernel.perror( PROGRAM_NAME ) ;
+      Kernel.exit( 2 ) ;
+    }
+    Kernel.close( fd ) ;
+  }
+
+  /**
+   * Make an empty file, or exit if it can't be made.
+   * @param name the name of the file
+   * @exception java.lang.Exception if an exception is thrown
+   * by an underlying operation
+   */
+  private static void makeFile( String name ) throws Exception
+  {
+    int fd = Kernel.creat( name , (short)0644 ) ;
+    if( fd < 0 )
+    {
+      Kernel.perror( PROGRAM_NAME ) ;
+      Kernel.exit( 2 ) ;
+    }
+    Kernel.close( fd ) ;
+  }
+
+  /**
+   * Rename an entry of a directory by writing a new entry over it,
+   * and check that it is found by its new name and not its old one.
+   * @param dirname the name of the directory, ending with a slash
+   * @param oldName the name of the entry
+   * @param newName the name to give it
+   * @param raw true to write the entry with write(); false to use
+   * writedir()
+   * @return the number of checks which failed
+   * @exception java.lang.Exception if an exception is thrown
+   * by an underlying operation
+   */
+  private static int rename( String dirname , String oldName ,
+    String newName , boolean raw ) throws Exception
+  {
+    String how = raw ? "write" : "writedir" ;
+    int dir = Kernel.open( dirname , Kernel.O_RDWR ) ;
+    if( dir < 0 )
+    {
+      Kernel.perror( PROGRAM_NAME ) ;
+      Kernel.exit( 2 ) ;
+    }
+
+    // find the entry, and write the new one over it
+    DirectoryEntry entry = new DirectoryEntry() ;
+    int status ;
+    while( ( status = Kernel.readdir( dir , entry ) ) > 0 &&
+      ! entry.getName().equals( oldName ) )
+      ;
+    if( status <= 0 )
+    {
+      System.out.println( PROGRAM_NAME + ": " + oldName +
+        " not in directory" ) ;
+      Kernel.close( dir ) ;
+      return 1 ;
+    }
+    short ino = entry.getIno() ;
+    Kernel.lseek( dir , - DirectoryEntry.DIRECTORY_ENTRY_SIZE , 1 ) ;
+    entry = new DirectoryEntry( ino , newName ) ;
+    if( raw )
+    {
+      byte[] bytes = new byte[DirectoryEntry.DIRECTORY_ENTRY_SIZE] ;
+      entry.write( bytes , 0 ) ;
+      Kernel.write( dir , bytes , bytes.length ) ;
+    }
+    else
+      Kernel.writedir( dir , entry ) ;
+    Kernel.close( dir ) ;
+
+    int failures = 0 ;
+    Stat stat = new Stat() ;
+    if( Kernel.stat( dirname + newName , stat ) < 0 ||
+      stat.getIno() != ino )
+    {
+      System.out.println( PROGRAM_NAME + ": " + newName +
+        " not found after " + how ) ;
+      failures ++ ;
+    }
+    if( Kernel.stat( dirname + oldName , stat ) == 0 )
+    {
+      System.out.println( PROGRAM_NAME + ": " + oldName +
+        " still found after " + how ) ;
+      failures ++ ;
+    }
+    return failures ;
+  }
+
+}
@@ -12,8 +12,13 @@
  *
  */
 
+import java.util.ArrayList ;
+import java.util.Collections ;
+
 /**
  * A simple directory listing program for a simulated file system.
+ * The entries of a directory are listed in order of name, whether
+ * or not the file system keeps them in that order.
  * <p>
  * Usage:
  * <pre>
@@ -83,9 +88,10 @@ public class ls
 
         // create a directory entry structure to hold data as we read
         DirectoryEntry directoryEntry = new DirectoryEntry() ;
+        ArrayList<String> entryNames = new ArrayList<String>() ;
         int count = 0 ;
 
-        // while we can read, print the information on each entry
+        // while we can read, collect the name of each entry
         while( true ) 
         {
           // read an entry; quit loop if error or nothing read
@@ -94,8 +100,25 @@ public class ls
             break ;
 
           // get the name from the entry
-          String entryName = directoryEntry.getName() ;
+          entryNames.add( directoryEntry.getName() ) ;
+        }
+
+        // check to see if our last read failed
+        if( status < 0 )
+        {
+          Kernel.perror( "main" ) ;
+          System.err.println( "main: unable to read directory entry from /" ) ;
+          Kernel.exit(2) ;
+        }
+
+        // close the directory
+        Kernel.close( fd ) ;
 
+        // the directory may not be kept in order, so sort the names
+        // and print the information on each entry
+        Collections.sort( entryNames ) ;
+        for( String entryName : entryNames )
+        {
           // call stat() to get info about the file
           status = Kernel.stat( name + "/" + entryName , stat ) ;
           if( status < 0 )
@@ -109,17 +132,6 @@ public class ls
           count ++ ;
         }
 
-        // check to see if our last read failed
-        if( status < 0 )
-        {
-          Kernel.perror( "main" ) ;
-          System.err.println( "main: unable to read directory entry from /" ) ;
-          Kernel.exit(2) ;
-        }
-
-        // close the directory
-        Kernel.close( fd ) ;
-
         // print a footing for this directory
         System.out.println( "total files: " + count ) ;
       }
@@ -56,27 +56,62 @@ public class mkfs
 
   /**
    * Creates a "file system" in the named file with the specified 
-   * blocksize and number of blocks.
+   * blocksize and number of blocks, and optionally the on-disk
+   * format version (by default, SuperBlock.CURRENT_FORMAT) and
+   * whether directory entries are kept in order of name ("sorted", 
+   * the default) or added at the end of the directory ("unsorted").
    * @exception java.lang.Exception if any exception occurs
    */
   public static void main( String[] argv ) throws Exception
   {
-    if( argv.length != 3 )
+    if( argv.length < 3 || argv.length > 5 )
     {
       System.err.println( 
-        "mkfs: usage: java mkfs <filename> <block-size> <blocks>" ) ;
+        "mkfs: usage: java mkfs <filename> <block-size> <blocks> [<format-version> [sorted|unsorted]]" ) ;
       System.exit( 1 ) ;
     }
 
     String filename = argv[0] ;
     short block_size = Short.parseShort( argv[1] ) ;
     int blocks = Integer.parseInt( argv[2] ) ;
-    int block_total = 0 ;
+    int format_version = SuperBlock.CURRENT_FORMAT ;
+    if( argv.length >= 4 )
+      format_version = Integer.parseInt( argv[3] ) ;
+    int flags = SuperBlock.FLAG_SORTED_DIRECTORIES ;
+    if( argv.length == 5 )
+    {
+      if( argv[4].equals( "unsorted" ) )
+        flags &= ~ SuperBlock.FLAG_SORTED_DIRECTORIES ;
+      else if( ! argv[4].equals( "sorted" ) )
+      {
+        System.err.println( "mkfs: unknown directory order " + argv[4] ) ;
+        System.exit( 1 ) ;
+      }
+    }
+    long block_total = 0 ;
+
+    if( format_version < SuperBlock.FORMAT_3_BYTE_ADDRESSES ||
+      format_version > SuperBlock.LATEST_FORMAT )
+    {
+      System.err.println( "mkfs: unknown format version " + 
+        format_version ) ;
+      System.exit( 1 ) ;
+    }
+
+    // the original format stores block addresses in 3 bytes
+    if( format_version == SuperBlock.FORMAT_3_BYTE_ADDRESSES &&
+      blocks >= 0x00FFFFFF )
+    {
+      System.err.println( "mkfs: format version " + format_version + 
+        " allows at most " + ( 0x00FFFFFF - 1 ) + " blocks" ) ;
+      System.exit( 1 ) ;
+    }
 
     /*
     blocks = 
       super_blocks + 
       free_list_blocks + 
+      inode_bitmap_blocks +
       inode_blocks + 
       data_blocks
     
@@ -96,6 +131,11 @@ public class mkfs
       ( data_blocks + block_size / inode_size - 1 ) / 
         ( block_size / inode_size )
     
+    We need one bit in the inode bitmap for each inode.
+    inode_bitmap_blocks =
+      ( inode_blocks * ( block_size / inode_size ) + block_size * 8 - 1 ) /
+        ( block_size * 8 )
+
     Then:
     
     blocks = 
@@ -104,30 +144,38 @@ public class mkfs
         ( block_size * 8 ) +
       ( data_blocks + block_size / inode_size - 1 ) / 
         ( block_size / inode_size ) +
+      inode_bitmap_blocks +
       data_blocks
 
     We then seek the maximum number of data blocks where the total number
     of blocks is less than or equal to the number of blocks available.
     We use a binary searching technique in the following algorithm.
+
+    Inode numbers are stored as shorts, so there is no point in having
+    more than Short.MAX_VALUE inodes; for large file systems we limit
+    inode_blocks accordingly.
     */
     int inode_size = IndexNode.INDEX_NODE_SIZE ;
+    int max_inode_blocks = Short.MAX_VALUE / ( block_size / inode_size ) ;
     int super_blocks = 1 ;
     int free_list_blocks = 0 ;
+    int inode_bitmap_blocks = 0 ;
     int inode_blocks = 0 ;
     int data_blocks = 0 ;
     int lo = 0 ;
     int hi = blocks ;
     while( lo <= hi )
     {
-      data_blocks = ( lo + hi + 1 ) / 2 ;
+      data_blocks = lo + ( hi - lo + 1 ) / 2 ;
       free_list_blocks =
         ( data_blocks + block_size * 8 - 1 ) / 
           ( block_size * 8 ) ;
-      inode_blocks =
+      inode_blocks = Math.min( max_inode_blocks ,
         ( data_blocks + block_size / inode_size - 1 ) / 
-          ( block_size / inode_size ) ;
-      block_total = super_blocks + free_list_blocks + 
-        inode_blocks + data_blocks ;
+          ( block_size / inode_size ) ) ;
+      inode_bitmap_blocks = inodeBitmapBlocks( inode_blocks , block_size ) ;
+      block_total = (long)super_blocks + free_list_blocks + 
+        inode_bitmap_blocks + inode_blocks + data_blocks ;
 
       /*
       Just in case you want to see it converge...
@@ -165,9 +213,13 @@ public class mkfs
     free_list_blocks =
       ( data_blocks + block_size * 8 - 1 ) / 
         ( block_size * 8 ) ;
+    // the inode bitmap needs no more blocks than it would if all the 
+    // remaining blocks were inodes
     inode_blocks = blocks - super_blocks - free_list_blocks - data_blocks ;
-    block_total = super_blocks + free_list_blocks + 
-      inode_blocks + data_blocks ;
+    inode_bitmap_blocks = inodeBitmapBlocks( inode_blocks , block_size ) ;
+    inode_blocks -= inode_bitmap_blocks ;
+    block_total = (long)super_blocks + free_list_blocks + 
+      inode_bitmap_blocks + inode_blocks + data_blocks ;
 
     if ( data_blocks <= 0 )
     {
@@ -176,10 +228,12 @@ public class mkfs
       System.exit( 2 ) ;
     }
 
+    System.out.println( "format_version: " + format_version ) ;
     System.out.println( "block_size: " + block_size ) ;
     System.out.println( "blocks: " + blocks ) ;
     System.out.println( "super_blocks: " + super_blocks ) ;
     System.out.println( "free_list_blocks: " + free_list_blocks ) ;
+    System.out.println( "inode_bitmap_blocks: " + inode_bitmap_blocks ) ;
     System.out.println( "inode_blocks: " + inode_blocks ) ;
     System.out.println( "data_blocks: " + data_blocks ) ;
     System.out.println( "block_total: " + block_total ) ;
@@ -190,11 +244,12 @@ public class mkfs
     File deleteFile = new File( filename ) ;
     deleteFile.delete() ;
 
-    RandomAccessFile file = new RandomAccessFile( filename , "rw" ) ;
+    BlockDevice file = new ChannelBlockDevice( filename , "rw" ) ;
 
     int superBlockOffset = 0 ;
     int freeListBlockOffset = superBlockOffset + 1 ;
-    int inodeBlockOffset = freeListBlockOffset + free_list_blocks ;
+    int inodeBitmapBlockOffset = freeListBlockOffset + free_list_blocks ;
+    int inodeBlockOffset = inodeBitmapBlockOffset + inode_bitmap_blocks ;
     int dataBlockOffset = inodeBlockOffset + inode_blocks ;
 
     /*
@@ -208,11 +263,20 @@ public class mkfs
     superBlock.setBlockSize( block_size ) ;
     superBlock.setBlocks( blocks ) ;
     superBlock.setFreeListBlockOffset( freeListBlockOffset ) ;
+    superBlock.setInodeBitmapBlockOffset( inodeBitmapBlockOffset ) ;
     superBlock.setInodeBlockOffset( inodeBlockOffset ) ;
     superBlock.setDataBlockOffset( dataBlockOffset ) ;
+    superBlock.setFormatVersion( format_version ) ;
+    // every data block but the root directory's is free, and every
+    // inode but the root's; inode numbers are shorts, so any inodes
+    // past Short.MAX_VALUE can't be used
+    int inodes = (int)Math.min( Short.MAX_VALUE , 
+      (long)inode_blocks * ( block_size / inode_size ) ) ;
+    superBlock.setFreeBlockCount( data_blocks - 1 ) ;
+    superBlock.setFreeIndexNodeCount( inodes - 1 ) ;
+    superBlock.setFlags( flags | SuperBlock.FLAG_FREE_COUNTS_VALID ) ;
 
     // write the superblock
-    file.seek( superBlockOffset * block_size ) ;
     superBlock.write( file ) ;
 
     // create the free list bitmap block
@@ -223,16 +287,19 @@ public class mkfs
     freeListBlock.setBit( 0 ) ;
 
     // write the free list bitmap blocks
-    file.seek( freeListBlockOffset * block_size ) ;
-    freeListBlock.write( file ) ;
+    freeListBlock.write( file , freeListBlockOffset ) ;
 
     // write the rest of the free list blocks which should be empty
     BitBlock emptyFreeListBlock = new BitBlock( block_size ) ;
-    for( int i = freeListBlockOffset + 1 ; i < inodeBlockOffset ; i ++ )
-    {
-      file.seek( i * block_size ) ;
-      emptyFreeListBlock.write( file ) ; 
-    }
+    for( int i = freeListBlockOffset + 1 ; i < inodeBitmapBlockOffset ; i ++ )
+      emptyFreeListBlock.write( file , i ) ; 
+
+    // all inodes are free except the root inode
+    BitBlock inodeBitmapBlock = new BitBlock( block_size ) ;
+    inodeBitmapBlock.setBit( FileSystem.ROOT_INDEX_NODE_NUMBER ) ;
+    inodeBitmapBlock.write( file , inodeBitmapBlockOffset ) ;
+    for( int i = inodeBitmapBlockOffset + 1 ; i < inodeBlockOffset ; i ++ )
+      emptyFreeListBlock.write( file , i ) ; 
 
     // create the root inode block
     Block rootInodeBlock = new Block( block_size ) ;
@@ -242,7 +309,10 @@ public class mkfs
 
     // set the first block address to the the 
     // address of the first available data block.
-    rootIndexNode.setBlockAddress( 0 , 0 ) ;
+    if( format_version == SuperBlock.FORMAT_EXTENTS )
+      rootIndexNode.getExtents().insert( 0 , 0 , 0 , 1 ) ;
+    else
+      rootIndexNode.setBlockAddress( 0 , 0 ) ;
 
     // the root inode is a directory inode
     rootIndexNode.setMode( Kernel.S_IFDIR ) ;
@@ -255,14 +325,15 @@ public class mkfs
     rootIndexNode.setNlink( (short)3 ) ;
     // write the rootIndexNode to the rootInodeBlock
     rootIndexNode.write( rootInodeBlock.bytes , 
-      ( FileSystem.ROOT_INDEX_NODE_NUMBER * IndexNode.INDEX_NODE_SIZE ) % block_size ) ;
+      ( FileSystem.ROOT_INDEX_NODE_NUMBER * IndexNode.INDEX_NODE_SIZE ) % block_size ,
+      format_version ) ;
 
     // ??? write the rest of the inodes in the first block
 
     // write the first inode block
-    file.seek( inodeBlockOffset * block_size + 
-      FileSystem.ROOT_INDEX_NODE_NUMBER * IndexNode.INDEX_NODE_SIZE ) ;
-    rootInodeBlock.write( file ) ;
+    rootInodeBlock.write( file , inodeBlockOffset + 
+      FileSystem.ROOT_INDEX_NODE_NUMBER * IndexNode.INDEX_NODE_SIZE /
+      block_size ) ;
 
     // ??? write the rest of the inode blocks
 
@@ -282,13 +353,24 @@ public class mkfs
     parent.write( rootDirectoryBlock.bytes , DirectoryEntry.DIRECTORY_ENTRY_SIZE ) ;
 
     // write the root directory block to the file
-    file.seek( dataBlockOffset * block_size ) ;
-    rootDirectoryBlock.write( file ) ;
+    rootDirectoryBlock.write( file , dataBlockOffset ) ;
 
     // write a zero byte to the last byte of the file system file
-    file.seek( blocks * block_size - 1 ) ;
-    file.write( 0 ) ;
+    file.write( new byte[1] , (long)blocks * block_size - 1 ) ;
     file.close() ;
   }
 
+  /**
+   * Get the number of blocks needed for the inode bitmap.
+   * @param inode_blocks the number of inode blocks
+   * @param block_size the block size in bytes
+   * @return the number of inode bitmap blocks
+   */
+  private static int inodeBitmapBlocks( int inode_blocks , short block_size )
+  {
+    int inodes = (int)Math.min( Short.MAX_VALUE , 
+      (long)inode_blocks * ( block_size / IndexNode.INDEX_NODE_SIZE ) ) ;
+    return ( inodes + block_size * 8 - 1 ) / ( block_size * 8 ) ;
+  }
+
 }